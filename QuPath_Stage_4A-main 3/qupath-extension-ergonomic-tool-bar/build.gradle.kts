@@ -24,6 +24,7 @@ repositories {
 dependencies {
     implementation("org.locationtech.jts:jts-core:1.20.0") // JTS Topology Suite
     implementation("org.slf4j:slf4j-api:2.0.16") // SLF4J API
+    implementation("com.microsoft.onnxruntime:onnxruntime:1.19.2") // CPU inference
     implementation("io.github.qupath:qupath-core:0.6.0-rc1")
     implementation("io.github.qupath:qupath-extension-processing:0.6.0-rc1")
 
@@ -55,4 +56,18 @@ buildscript {
 }
 
 apply(plugin = "java")
-apply(plugin = "com.gradleup.shadow")
\ No newline at end of file
+apply(plugin = "com.gradleup.shadow")
+
+// Benchmarks called from the script editor of a development QuPath, left out of the extension
+// jar: "gradlew benchmarkJar", then copy build/libs/*-benchmarks.jar next to the extension
+val mainSourceSet = the<SourceSetContainer>()["main"]
+val benchmark: SourceSet = the<SourceSetContainer>().create("benchmark") {
+    compileClasspath += mainSourceSet.output + mainSourceSet.compileClasspath
+    runtimeClasspath += output + compileClasspath
+}
+
+tasks.register<Jar>("benchmarkJar") {
+    description = "Assembles the benchmarks, which are not part of the extension jar."
+    archiveClassifier.set("benchmarks")
+    from(benchmark.output)
+}
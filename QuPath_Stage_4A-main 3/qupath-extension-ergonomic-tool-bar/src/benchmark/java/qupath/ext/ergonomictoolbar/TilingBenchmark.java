@@ -0,0 +1,114 @@
+package qupath.ext.ergonomictoolbar;
+
+import java.util.List;
+import java.util.Random;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time spent tiling a whole slide tumor outline, with the geometry predicates on every cell
+ * against the whole outline, against the pieces of the quadtree mode, and in the scanline mode
+ * of {@link AlternativeTiler}.
+ *
+ * <p>Built in the benchmarks jar, not in the extension ({@code gradlew benchmarkJar}).
+ * To be run from the script editor:
+ * <pre>
+ *   import qupath.ext.ergonomictoolbar.TilingBenchmark
+ *   print TilingBenchmark.run(224, 20, 100, 1000, 10000, 100000)
+ * </pre>
+ * The outline is an irregular blob of 60000 pixels with a necrotic hole, drawn with the given
+ * numbers of vertices. Each size is tiled once before being timed, so that all the modes run
+ * compiled code. All the modes must give the same tiles, up to the starting vertex of the
+ * cropped ones.
+ */
+public final class TilingBenchmark {
+  private static final Logger logger = LoggerFactory.getLogger(TilingBenchmark.class);
+
+  private static final double RADIUS = 30000;
+
+  private TilingBenchmark() {
+  }
+
+  /**
+   * Tile outlines of increasing complexity in each mode.
+   *
+   * @param tileSize     the width and height of the tiles, in pixels
+   * @param spacing      the gap between two tiles, in pixels
+   * @param vertexCounts the numbers of vertices of the outlines
+   * @return a report with the number of tiles and the time of each mode, and whether all the
+   *         modes gave the same tiles
+   */
+  public static String run(int tileSize, int spacing, int... vertexCounts) {
+    AlternativeTiler predicates = AlternativeTiler.builder(tileSize, spacing).build();
+    AlternativeTiler quadtree = AlternativeTiler.builder(predicates).quadtree(true).build();
+    AlternativeTiler scanline = AlternativeTiler.builder(quadtree).scanline(true).build();
+
+    StringBuilder report = new StringBuilder(String.format("%9s %8s %14s %12s %12s %6s%n",
+        "vertices", "tiles", "predicates ms", "quadtree ms", "scanline ms", "same"));
+    for (int vertexCount : vertexCounts) {
+      Geometry outline = createOutline(vertexCount);
+      // Warm up
+      predicates.createGeometries(outline);
+      quadtree.createGeometries(outline);
+      scanline.createGeometries(outline);
+
+      long start = System.nanoTime();
+      List<Geometry> expected = predicates.createGeometries(outline);
+      long predicatesMs = (System.nanoTime() - start) / 1_000_000;
+
+      start = System.nanoTime();
+      List<Geometry> quadtreeTiles = quadtree.createGeometries(outline);
+      long quadtreeMs = (System.nanoTime() - start) / 1_000_000;
+
+      start = System.nanoTime();
+      List<Geometry> tiles = scanline.createGeometries(outline);
+      long scanlineMs = (System.nanoTime() - start) / 1_000_000;
+
+      report.append(String.format("%9d %8d %14d %12d %12d %6s%n", vertexCount, tiles.size(),
+          predicatesMs, quadtreeMs, scanlineMs,
+          same(expected, quadtreeTiles) && same(expected, tiles)));
+    }
+    logger.info("Tiling benchmark\n{}", report);
+    return report.toString();
+  }
+
+  /**
+   * Create an irregular outline, with a hole, whose exterior ring has {@code vertexCount}
+   * vertices.
+   */
+  private static Geometry createOutline(int vertexCount) {
+    GeometryFactory factory = new GeometryFactory();
+    Random random = new Random(vertexCount);
+    Coordinate[] exterior = new Coordinate[Math.max(3, vertexCount) + 1];
+    for (int i = 0; i < exterior.length - 1; i++) {
+      double angle = 2 * Math.PI * i / (exterior.length - 1);
+      double radius = RADIUS * (1 + 0.2 * Math.sin(3 * angle) + 0.1 * Math.sin(11 * angle)
+          + 0.01 * random.nextDouble());
+      exterior[i] = new Coordinate(RADIUS * 1.5 + radius * Math.cos(angle),
+          RADIUS * 1.5 + radius * Math.sin(angle));
+    }
+    exterior[exterior.length - 1] = exterior[0];
+
+    Geometry hole = factory.createPoint(new Coordinate(RADIUS * 1.6, RADIUS * 1.4))
+        .buffer(RADIUS / 4);
+    return factory.createPolygon(exterior).difference(hole);
+  }
+
+  private static boolean same(List<Geometry> expected, List<Geometry> tiles) {
+    if (expected.size() != tiles.size()) {
+      return false;
+    }
+    for (int i = 0; i < tiles.size(); i++) {
+      Geometry a = expected.get(i);
+      Geometry b = tiles.get(i);
+      // A boundary tile cut from a piece of the outline may start at another vertex
+      if (!a.equalsExact(b) && a.symDifference(b).getArea() > 1e-6 * Math.max(1, a.getArea())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
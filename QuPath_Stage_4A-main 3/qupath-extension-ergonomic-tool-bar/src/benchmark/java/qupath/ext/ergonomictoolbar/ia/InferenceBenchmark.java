@@ -0,0 +1,89 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.ExtensionManagement;
+import qupath.ext.ergonomictoolbar.Ia;
+import qupath.ext.ergonomictoolbar.TileGrid;
+import qupath.ext.ergonomictoolbar.utils.FileUtils;
+import qupath.lib.images.ImageData;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Throughput of the classifier running in QuPath for several batch sizes.
+ *
+ * <p>Development only, it is not part of the extension jar: build it with
+ * {@code gradlew benchmarkJar} and copy the benchmarks jar next to the extension.
+ * To be run from the script editor, on an image with a "Tumor Area" annotation
+ * and a model exported to ONNX:
+ * <pre>
+ *   import qupath.ext.ergonomictoolbar.ia.InferenceBenchmark
+ *   print InferenceBenchmark.run(getCurrentImageData(), 512, 1, 4, 8, 16, 32, 64)
+ * </pre>
+ * The tiles are read once before the measures, so only the inference is timed.
+ * The number of threads is the "Inference threads" preference.
+ */
+public final class InferenceBenchmark {
+  private static final Logger logger = LoggerFactory.getLogger(InferenceBenchmark.class);
+
+  private InferenceBenchmark() {
+  }
+
+  /**
+   * Measure the throughput for each batch size.
+   *
+   * @param imageData  the image containing the "Tumor Area" annotations
+   * @param maxTiles   the maximum number of tiles classified for each batch size
+   * @param batchSizes the batch sizes to compare
+   * @return a report with one line per batch size
+   * @throws IOException if the tiles cannot be read or the model cannot be loaded
+   */
+  public static String run(ImageData<BufferedImage> imageData, int maxTiles, int... batchSizes)
+      throws IOException {
+    List<ROI> tiles = TileGrid.Tiles.of(
+        Ia.getTileGrids(imageData, imageData.getHierarchy().getAnnotationObjects()));
+    tiles = tiles.subList(0, Math.min(maxTiles, tiles.size()));
+    if (tiles.isEmpty()) {
+      return "No tile to classify";
+    }
+
+    double downsample = ReadResolution.select(imageData.getServer(),
+        tiles.getFirst().getBoundsWidth()).getDownsample();
+    List<BufferedImage> images = new ArrayList<>();
+    for (ROI tile : tiles) {
+      images.add(Ia.createImageWithRequest(imageData.getServer(), tile, downsample));
+    }
+
+    File modelFile = new File(FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).getFirst(),
+        OnnxTileClassifier.MODEL_FILE);
+    int threads = ExtensionManagement.inferenceThreadsProperty().getValue();
+
+    StringBuilder report = new StringBuilder(String.format(
+        "%d tiles, %d threads, %d processors%n",
+        images.size(), threads, Runtime.getRuntime().availableProcessors()));
+
+    try (TileClassifier classifier = new OnnxTileClassifier(modelFile.toPath(), threads)) {
+      // Warm up, the first run includes the allocation of the session buffers
+      classifier.classify(images.subList(0, Math.min(8, images.size())));
+
+      for (int batchSize : batchSizes) {
+        long start = System.nanoTime();
+        for (int i = 0; i < images.size(); i += batchSize) {
+          classifier.classify(images.subList(i, Math.min(i + batchSize, images.size())));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        report.append(String.format("batch %4d : %8.1f tiles/s (%.2f ms per tile)%n",
+            batchSize, images.size() / seconds, seconds * 1000 / images.size()));
+      }
+    }
+
+    logger.info("Inference benchmark\n{}", report);
+    return report.toString();
+  }
+}
@@ -0,0 +1,71 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.Ia;
+import qupath.ext.ergonomictoolbar.TileGrid;
+import qupath.lib.images.ImageData;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Time spent reading the tiles, one request per tile against one request per strip.
+ *
+ * <p>Part of the benchmarks jar ({@code gradlew benchmarkJar}), not of the extension.
+ * To be run from the script editor, on an image with a "Tumor Area" annotation:
+ * <pre>
+ *   import qupath.ext.ergonomictoolbar.ia.ReadBenchmark
+ *   print ReadBenchmark.run(getCurrentImageData(), 20, 2048)
+ * </pre>
+ * The strips are read first: the tiles cached by the server during that pass also speed up
+ * the per-tile pass, so the measured saving is a lower bound. Open the image again
+ * before running it a second time.
+ */
+public final class ReadBenchmark {
+  private static final Logger logger = LoggerFactory.getLogger(ReadBenchmark.class);
+
+  private ReadBenchmark() {
+  }
+
+  /**
+   * Read all the tiles of the "Tumor Area" annotations in both ways.
+   *
+   * @param imageData     the image containing the "Tumor Area" annotations
+   * @param downsample    the downsample at which the tiles are read
+   * @param maxBlockWidth the maximum width of a strip, in pixels at the downsample
+   * @return a report with the number of requests and the time of each pass
+   * @throws IOException if a region cannot be read
+   */
+  public static String run(ImageData<BufferedImage> imageData, double downsample,
+                           int maxBlockWidth) throws IOException {
+    List<ROI> tiles = TileGrid.Tiles.of(
+        Ia.getTileGrids(imageData, imageData.getHierarchy().getAnnotationObjects()));
+    if (tiles.isEmpty()) {
+      return "No tile to read";
+    }
+
+    BlockRegionReader blockReader =
+        new BlockRegionReader(imageData.getServer(), downsample, maxBlockWidth);
+    List<BlockRegionReader.Block> blocks = blockReader.plan(tiles);
+
+    long start = System.nanoTime();
+    for (BlockRegionReader.Block block : blocks) {
+      blockReader.read(block, tiles);
+    }
+    long blockMs = (System.nanoTime() - start) / 1_000_000;
+
+    start = System.nanoTime();
+    for (ROI tile : tiles) {
+      Ia.createImageWithRequest(imageData.getServer(), tile, downsample);
+    }
+    long tileMs = (System.nanoTime() - start) / 1_000_000;
+
+    String report = String.format(
+        "%d tiles%nper tile : %6d requests, %6d ms%nstrips   : %6d requests, %6d ms%n",
+        tiles.size(), tiles.size(), tileMs, blocks.size(), blockMs);
+    logger.info("Read benchmark\n{}", report);
+    return report;
+  }
+}
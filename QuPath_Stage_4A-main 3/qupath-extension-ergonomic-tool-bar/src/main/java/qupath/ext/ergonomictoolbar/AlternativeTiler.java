@@ -2,13 +2,20 @@ package qupath.ext.ergonomictoolbar;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.TopologyException;
 import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.objects.PathAnnotationObject;
@@ -26,7 +33,7 @@ import qupath.lib.roi.interfaces.ROI;
  * A attribute "spacing" was added, it represents the gap beetween the different tiles
  * AlternativeTiler's and Builder's constructors were adapted to take this attribute into account
  * Function "public List createGeometries(Geometry parent)" has been modified to put
- * space between tiles, 'spacing' pixels exactly, see line 212
+ * space between tiles, 'spacing' pixels exactly, see CellSpliterator
  *
  * <p>Copyright of the original file right below
  *
@@ -57,6 +64,8 @@ public class AlternativeTiler {
   private final boolean filterByCentroid;
   private final AlternativeTiler.TileAlignment alignment;
   private final int spacing;
+  private final boolean scanline;
+  private final boolean quadtree;
 
   /**
    * Constructor.
@@ -71,10 +80,16 @@ public class AlternativeTiler {
    * @param filterByCentroid controls whether tiles whose centroid is outwith
    *                         the parent object will be removed from the
    *                         output.
+   * @param spacing          the gap between two tiles, in pixels.
+   * @param scanline         controls whether the cells are sorted by a scanline before the
+   *                         geometry predicates.
+   * @param quadtree         controls whether the predicates are evaluated against the pieces
+   *                         of the parent split into quadrants.
    */
   private AlternativeTiler(int tileWidth, int tileHeight,
                            boolean cropToParent, AlternativeTiler.TileAlignment alignment,
-                           boolean filterByCentroid, int spacing) {
+                           boolean filterByCentroid, int spacing, boolean scanline,
+                           boolean quadtree) {
     if (tileWidth <= 0 || tileHeight <= 0) {
       throw new IllegalArgumentException("tileWidth and tileHeight must be > 0, but were "
           + tileWidth + " and " + tileHeight);
@@ -85,11 +100,20 @@ public class AlternativeTiler {
     this.alignment = alignment;
     this.filterByCentroid = filterByCentroid;
     this.spacing = spacing;
+    this.scanline = scanline;
+    this.quadtree = quadtree;
   }
 
   private static Function<Geometry, Geometry> createTileFilter(PreparedGeometry parent,
                                                                boolean cropToParent,
                                                                boolean filterByCentroid) {
+    return createTileFilter(parent, cropToParent, filterByCentroid, Geometry::intersection);
+  }
+
+  private static Function<Geometry, Geometry> createTileFilter(PreparedGeometry parent,
+                                                               boolean cropToParent,
+                                                               boolean filterByCentroid,
+                                                               BinaryOperator<Geometry> crop) {
     return (Geometry tile) -> {
       // straightforward case 1:
       // if there's no intersection, we're in the bounding box but not
@@ -107,7 +131,7 @@ public class AlternativeTiler {
       if (cropToParent) {
         // crop the tile to fit the parent
         try {
-          return tile.intersection(parent.getGeometry());
+          return crop.apply(tile, parent.getGeometry());
         } catch (TopologyException e) {
           logger.warn("Exception calculating tile intersection - tile will be skipped", e);
           return null;
@@ -246,6 +270,25 @@ public class AlternativeTiler {
     return filterByCentroid;
   }
 
+  /**
+   * Check if the tiler sorts the cells with a scanline before the geometry predicates.
+   *
+   * @return The current setting
+   */
+  public boolean getScanline() {
+    return scanline;
+  }
+
+  /**
+   * Check if the tiler evaluates the geometry predicates against the parent split into
+   * quadrants.
+   *
+   * @return The current setting
+   */
+  public boolean getQuadtree() {
+    return quadtree;
+  }
+
   /**
    * Create a list of {@link Geometry} tiles from the input. These may
    * not all be rectangular based on the settings used.
@@ -259,9 +302,87 @@ public class AlternativeTiler {
           "AlternativeTiler.createGeometries() called with null parent - no tiles will be created");
       return new ArrayList<>();
     }
+    return streamGeometries(parent).collect(Collectors.toList());
+  }
+
+  /**
+   * Stream the {@link Geometry} tiles of the input. These may
+   * not all be rectangular based on the settings used.
+   *
+   * <p>The cells of the grid are created one at a time as the stream is consumed, and the
+   * cells outside the parent are dropped at once, so the memory used depends on the tiles kept
+   * rather than on the area of the bounding box. The tiles are given column after column,
+   * from the top of each column, in the same order as {@link #createGeometries(Geometry)}.
+   * The stream is parallel, the grid being split between the threads.
+   *
+   * <p>In quadtree mode, a polygonal parent is split into quadrants clipped in parallel, and
+   * each cell is tested against the piece of its quadrant, see {@link ParentQuadtree}.
+   * In scanline mode, the cells fully inside a polygonal parent are kept and the cells
+   * outside are dropped without any geometry predicate, only the cells crossing its boundary
+   * are tested, against the pieces of the quadtree, see {@link TileScanline}.
+   *
+   * @param parent the object that will be split into tiles.
+   * @return a stream of tiles
+   */
+  public Stream<Geometry> streamGeometries(Geometry parent) {
+    if (parent == null) {
+      logger.warn(
+          "AlternativeTiler.streamGeometries() called with null parent - no tiles will be created");
+      return Stream.empty();
+    }
 
-    Envelope boundingBox = parent.getEnvelopeInternal();
+    return streamCells(parent, layout(parent.getEnvelopeInternal()), (index, cell, tile) -> tile);
+  }
 
+  /**
+   * Tile an annotation into a {@link TileGrid}, which keeps the indices of the cells instead
+   * of an object per tile. Only the tiles cropped to the annotation keep their ROI.
+   *
+   * @param parent the annotation that will be split into tiles.
+   * @return the grid, which may be empty
+   */
+  public TileGrid createGrid(PathObject parent) {
+    ROI roi = parent.getROI();
+    Layout layout = layout(roi.getGeometry().getEnvelopeInternal());
+    if (layout.columns() * layout.rows() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many cells to tile " + parent + ": "
+          + layout.columns() + " x " + layout.rows());
+    }
+
+    // The filter gives back the rectangle itself when the tile is not cropped
+    List<GridCell> kept = streamCells(roi.getGeometry(), layout,
+        (index, cell, tile) -> new GridCell((int) index,
+            tile == cell ? null : GeometryTools.geometryToROI(tile, roi.getImagePlane())))
+        .toList();
+
+    int[] cells = new int[kept.size()];
+    int croppedCount = 0;
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = kept.get(i).index();
+      if (kept.get(i).cropped() != null) {
+        croppedCount++;
+      }
+    }
+    int[] croppedTiles = new int[croppedCount];
+    ROI[] croppedRois = new ROI[croppedCount];
+    croppedCount = 0;
+    for (int i = 0; i < cells.length; i++) {
+      if (kept.get(i).cropped() != null) {
+        croppedTiles[croppedCount] = i;
+        croppedRois[croppedCount++] = kept.get(i).cropped();
+      }
+    }
+    return new TileGrid(parent, roi.getImagePlane(), layout.x0(), layout.y0(), tileWidth,
+        tileHeight, spacing, (int) layout.rows(), cells, croppedTiles, croppedRois);
+  }
+
+  /**
+   * Place the grid on the bounding box of the parent, according to the alignment.
+   *
+   * @param boundingBox the bounding box of the parent
+   * @return the origin and the size of the grid
+   */
+  private Layout layout(Envelope boundingBox) {
     double xstart = boundingBox.getMinX();
     double xend = boundingBox.getMaxX();
     switch (alignment) {
@@ -318,20 +439,38 @@ public class AlternativeTiler {
         throw new IllegalStateException("Unexpected value: " + alignment);
     }
 
-    //Here is the modified block of code
-    //The spacing value defines the spacing beetween tiles, at pixel scaling
-    List<Geometry> tiles = new ArrayList<>();
-    for (int x = (int) xstart; x < xend; x += tileWidth) {
-      for (int y = (int) ystart; y < yend; y += tileHeight) {
-        tiles.add(GeometryTools.createRectangle(x, y, tileWidth - spacing, tileHeight - spacing));
-      }
-    }
+    // Same cells as the loops "for x from (int) xstart while x < xend, step tileWidth"
+    // and "for y from (int) ystart while y < yend, step tileHeight"
+    int x0 = (int) xstart;
+    int y0 = (int) ystart;
+    long columns = Math.max(0, (long) Math.ceil((xend - x0) / tileWidth));
+    long rows = Math.max(0, (long) Math.ceil((yend - y0) / tileHeight));
+    return new Layout(x0, y0, columns, rows);
+  }
+
+  /**
+   * Stream the cells of the grid kept in the parent, see {@link #streamGeometries(Geometry)}.
+   *
+   * @param parent the object that will be split into tiles.
+   * @param layout the grid placed on the parent
+   * @param mapper creates the element of each cell kept
+   * @return a stream of elements
+   */
+  private <T> Stream<T> streamCells(Geometry parent, Layout layout, CellMapper<T> mapper) {
+    long rows = layout.rows();
+    TileScanline cells = scanline && rows <= Integer.MAX_VALUE
+        ? TileScanline.create(parent, layout.y0(), (int) rows, tileHeight, tileHeight - spacing)
+        : null;
+    // The scanline leaves the cells crossing the boundary, which need the local pieces as well
+    ParentQuadtree pieces = quadtree || cells != null
+        ? ParentQuadtree.build(parent, layout.x0(), layout.y0(), layout.columns(), rows,
+            tileWidth, tileHeight)
+        : null;
 
     var preparedParent = PreparedGeometryFactory.prepare(parent);
-    return tiles.parallelStream()
-        .map(createTileFilter(preparedParent, cropToParent, filterByCentroid))
-        .filter(g -> g != null)
-        .collect(Collectors.toList());
+    return StreamSupport.stream(new CellSpliterator<>(layout.x0(), layout.y0(), rows, 0,
+        layout.columns() * rows, createTileFilter(preparedParent, cropToParent, filterByCentroid),
+        cells, pieces, mapper), true);
   }
 
   /**
@@ -342,9 +481,18 @@ public class AlternativeTiler {
    * @return a list of tiles
    */
   public List<ROI> createRois(ROI parent) {
-    return createGeometries(parent.getGeometry()).stream()
-        .map(g -> GeometryTools.geometryToROI(g, parent.getImagePlane()))
-        .collect(Collectors.toList());
+    return streamRois(parent).collect(Collectors.toList());
+  }
+
+  /**
+   * Stream the {@link ROI} tiles of the input, see {@link #streamGeometries(Geometry)}.
+   *
+   * @param parent the object that will be split into tiles.
+   * @return a stream of tiles
+   */
+  public Stream<ROI> streamRois(ROI parent) {
+    return streamGeometries(parent.getGeometry())
+        .map(g -> GeometryTools.geometryToROI(g, parent.getImagePlane()));
   }
 
   /**
@@ -357,7 +505,19 @@ public class AlternativeTiler {
    * @return a list of tiles
    */
   public List<PathObject> createObjects(ROI parent, Function<ROI, PathObject> creator) {
-    return createRois(parent).stream().map(creator).collect(Collectors.toList());
+    return streamObjects(parent, creator).collect(Collectors.toList());
+  }
+
+  /**
+   * Stream the {@link PathObject} tiles of the input, see {@link #streamGeometries(Geometry)}.
+   *
+   * @param parent  the object that will be split into tiles.
+   * @param creator a function used to create the desired type
+   *                of {@link PathObject}
+   * @return a stream of tiles
+   */
+  public Stream<PathObject> streamObjects(ROI parent, Function<ROI, PathObject> creator) {
+    return streamRois(parent).map(creator);
   }
 
   /**
@@ -371,6 +531,17 @@ public class AlternativeTiler {
     return createObjects(parent, PathObjects::createTileObject);
   }
 
+  /**
+   * Stream the {@link PathTileObject} tiles of the input, see
+   * {@link #streamGeometries(Geometry)}.
+   *
+   * @param parent the object that will be split into tiles.
+   * @return a stream of tiles
+   */
+  public Stream<PathObject> streamTiles(ROI parent) {
+    return streamObjects(parent, PathObjects::createTileObject);
+  }
+
   /**
    * Create a list of {@link PathAnnotationObject} tiles from the input. These may
    * not all be rectangular based on the settings used.
@@ -382,6 +553,136 @@ public class AlternativeTiler {
     return createObjects(parent, PathObjects::createAnnotationObject);
   }
 
+  /**
+   * Stream the {@link PathAnnotationObject} tiles of the input, see
+   * {@link #streamGeometries(Geometry)}.
+   *
+   * @param parent the object that will be split into tiles.
+   * @return a stream of tiles
+   */
+  public Stream<PathObject> streamAnnotations(ROI parent) {
+    return streamObjects(parent, PathObjects::createAnnotationObject);
+  }
+
+  /**
+   * Cells of the grid, numbered column after column, created and filtered one at a time.
+   * The spacing value defines the spacing between tiles, at pixel scaling.
+   */
+  private final class CellSpliterator<T> implements Spliterator<T> {
+    // Below this number of cells, a part of the grid is not split anymore
+    private static final long MIN_SPLIT_CELLS = 64;
+
+    private final int x0;
+    private final int y0;
+    private final long rows;
+    private final Function<Geometry, Geometry> filter;
+    private final TileScanline cells;
+    private final ParentQuadtree pieces;
+    private final CellMapper<T> mapper;
+    private long index;
+    private final long end;
+
+    private CellSpliterator(int x0, int y0, long rows, long index, long end,
+                            Function<Geometry, Geometry> filter, TileScanline cells,
+                            ParentQuadtree pieces, CellMapper<T> mapper) {
+      this.x0 = x0;
+      this.y0 = y0;
+      this.rows = rows;
+      this.index = index;
+      this.end = end;
+      this.filter = filter;
+      this.cells = cells;
+      this.pieces = pieces;
+      this.mapper = mapper;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (index < end) {
+        long column = index / rows;
+        long row = index % rows;
+        index++;
+
+        double x = x0 + column * tileWidth;
+        byte position = cells != null
+            ? cells.classify((int) row, x, tileWidth - spacing) : TileScanline.BOUNDARY;
+        if (position == TileScanline.OUTSIDE) {
+          continue;
+        }
+        Geometry cell = GeometryTools.createRectangle(x, y0 + row * tileHeight,
+            tileWidth - spacing, tileHeight - spacing);
+        Geometry tile;
+        if (position == TileScanline.INSIDE) {
+          // A cell inside the parent is covered by it, it is kept unchanged
+          tile = cell;
+        } else if (pieces != null) {
+          // The overlay clips the piece to the cell before computing their intersection
+          tile = createTileFilter(pieces.getPiece(column, row), cropToParent, filterByCentroid,
+              (a, b) -> OverlayNGRobust.overlay(a, b, OverlayNG.INTERSECTION)).apply(cell);
+        } else {
+          tile = filter.apply(cell);
+        }
+        if (tile != null) {
+          action.accept(mapper.map(index - 1, cell, tile));
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      long remaining = end - index;
+      if (remaining < 2 * MIN_SPLIT_CELLS) {
+        return null;
+      }
+      // The first half is handed over, this one keeps the second
+      long middle = index + remaining / 2;
+      CellSpliterator<T> prefix =
+          new CellSpliterator<>(x0, y0, rows, index, middle, filter, cells, pieces, mapper);
+      index = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+    }
+  }
+
+  /**
+   * Origin of the grid placed on a parent, and its number of cells.
+   */
+  private record Layout(int x0, int y0, long columns, long rows) {
+  }
+
+  /**
+   * Cell kept in a {@link TileGrid}, with its ROI if its tile was cropped.
+   */
+  private record GridCell(int index, ROI cropped) {
+  }
+
+  /**
+   * Creates the element streamed for a cell kept in the parent.
+   */
+  @FunctionalInterface
+  private interface CellMapper<T> {
+    /**
+     * Map a cell.
+     *
+     * @param index the index of the cell, column after column
+     * @param cell  the rectangle of the cell
+     * @param tile  the tile kept, which is the rectangle itself unless it was cropped
+     * @return the element to stream
+     */
+    T map(long index, Geometry cell, Geometry tile);
+  }
+
   /**
    * Enum representing the possible alignments for tiles.
    * A tile alignment of TOP_LEFT indicates that tiling should begin at the top left bounding box,
@@ -405,6 +706,8 @@ public class AlternativeTiler {
     private AlternativeTiler.TileAlignment alignment = AlternativeTiler.TileAlignment.CENTER;
     private boolean filterByCentroid = false;
     private int spacing;
+    private boolean scanline = false;
+    private boolean quadtree = false;
 
     private Builder(int tileWidth, int tileHeight, int spacing) {
       this.tileWidth = tileWidth;
@@ -418,6 +721,9 @@ public class AlternativeTiler {
       this.cropToParent = tiler.cropToParent;
       this.alignment = tiler.alignment;
       this.filterByCentroid = tiler.filterByCentroid;
+      this.spacing = tiler.spacing;
+      this.scanline = tiler.scanline;
+      this.quadtree = tiler.quadtree;
     }
 
     /**
@@ -558,6 +864,32 @@ public class AlternativeTiler {
       return this;
     }
 
+    /**
+     * Set if the tiler sorts the cells with a scanline of the parent, so that only the cells
+     * crossing its boundary are given to the geometry predicates.
+     * The tiles are the same, this only makes tiling large polygons faster.
+     *
+     * @param scanline the new setting
+     * @return this builder
+     */
+    public AlternativeTiler.Builder scanline(boolean scanline) {
+      this.scanline = scanline;
+      return this;
+    }
+
+    /**
+     * Set if the tiler splits the parent into quadrants, each clipped and prepared on its own,
+     * so that the geometry predicates of a cell only visit the vertices around it.
+     * The tiles are the same, this only makes tiling detections with many vertices faster.
+     *
+     * @param quadtree the new setting
+     * @return this builder
+     */
+    public AlternativeTiler.Builder quadtree(boolean quadtree) {
+      this.quadtree = quadtree;
+      return this;
+    }
+
     /**
      * Build a tiler object with the current settings.
      *
@@ -565,7 +897,7 @@ public class AlternativeTiler {
      */
     public AlternativeTiler build() {
       return new AlternativeTiler(tileWidth, tileHeight, cropToParent, alignment, filterByCentroid,
-          spacing);
+          spacing, scanline, quadtree);
     }
 
   }
@@ -0,0 +1,250 @@
+package qupath.ext.ergonomictoolbar;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Threads shared by all the work of the extension.
+ *
+ * <p>The work is split in three lanes:
+ * <ul>
+ *   <li>{@link #cpu()} for the short computations, such as encoding a tile,
+ *   with as many threads as the "Worker threads" preference,</li>
+ *   <li>{@link #io()} for the short reads and writes, such as reading a tile from the
+ *   server, with twice as many threads since they mostly wait,</li>
+ *   <li>{@link #jobs()} for the long tasks that coordinate the others or wait on an
+ *   external process, such as an annotation run, a training or the model folder watcher.</li>
+ * </ul>
+ * A task of the cpu or io lane must never wait for another task of the same lanes,
+ * otherwise all the threads could end up waiting for tasks that cannot start.
+ * The lanes are resized when the preference changes, and are never shut down.
+ */
+public final class ExtensionExecutors {
+  private static final Logger logger = LoggerFactory.getLogger(ExtensionExecutors.class);
+
+  // Idle threads are released after this delay, an idle QuPath keeps no worker thread
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final Lane CPU =
+      new Lane("cpu", workerThreads(), new LinkedBlockingQueue<>());
+  private static final Lane IO =
+      new Lane("io", 2 * workerThreads(), new LinkedBlockingQueue<>());
+  private static final Lane JOBS =
+      new Lane("job", Integer.MAX_VALUE, new SynchronousQueue<>());
+
+  static {
+    ExtensionManagement.numThreadsProperty().addListener((observable, oldValue, newValue) -> {
+      CPU.resize(workerThreads());
+      IO.resize(2 * workerThreads());
+      logger.info("Extension lanes resized: {}", report());
+    });
+  }
+
+  private ExtensionExecutors() {
+  }
+
+  /**
+   * Get the lane of the short computations.
+   *
+   * @return the shared executor, it must not be shut down
+   */
+  public static ExecutorService cpu() {
+    return CPU;
+  }
+
+  /**
+   * Get the lane of the short reads and writes.
+   *
+   * @return the shared executor, it must not be shut down
+   */
+  public static ExecutorService io() {
+    return IO;
+  }
+
+  /**
+   * Get the lane of the long tasks. It has no thread limit, the tasks it runs should
+   * delegate their work to the other lanes.
+   *
+   * @return the shared executor, it must not be shut down
+   */
+  public static ExecutorService jobs() {
+    return JOBS;
+  }
+
+  /**
+   * Create an executor running its tasks one at a time, in their submission order,
+   * on the threads of a lane.
+   *
+   * @param lane the lane running the tasks
+   * @return a new serial executor
+   */
+  public static Executor serial(Executor lane) {
+    return new SerialExecutor(lane);
+  }
+
+  /**
+   * Get the number of threads of the cpu lane, from the "Worker threads" preference.
+   *
+   * @return the number of threads, at least 1
+   */
+  public static int workerThreads() {
+    Integer threads = ExtensionManagement.numThreadsProperty().getValue();
+    return threads == null ? 1 : Math.max(1, threads);
+  }
+
+  /**
+   * Get the number of tasks waiting for a thread in the cpu and io lanes.
+   *
+   * @return the queue depth
+   */
+  public static int getQueueDepth() {
+    return CPU.getQueue().size() + IO.getQueue().size();
+  }
+
+  /**
+   * Get the number of tasks running in all the lanes.
+   *
+   * @return the number of active tasks
+   */
+  public static int getActiveCount() {
+    return CPU.getActiveCount() + IO.getActiveCount() + JOBS.getActiveCount();
+  }
+
+  /**
+   * Describe the load of each lane.
+   *
+   * @return one line per lane, with its threads, active and queued tasks
+   */
+  public static String report() {
+    StringBuilder report = new StringBuilder();
+    for (Lane lane : List.of(CPU, IO, JOBS)) {
+      report.append(lane.describe()).append('\n');
+    }
+    return report.toString();
+  }
+
+  /**
+   * Thread pool of a lane, counting its tasks.
+   */
+  private static final class Lane extends ThreadPoolExecutor {
+    private final String name;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private Lane(String name, int threads, BlockingQueue<Runnable> queue) {
+      super(queue instanceof SynchronousQueue ? 0 : threads, threads,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+          ThreadTools.createThreadFactory("ergonomic-" + name + "-", true));
+      this.name = name;
+      if (getCorePoolSize() > 0) {
+        allowCoreThreadTimeOut(true);
+      }
+    }
+
+    private synchronized void resize(int threads) {
+      // The core size can never exceed the maximum size
+      if (threads > getMaximumPoolSize()) {
+        setMaximumPoolSize(threads);
+        setCorePoolSize(threads);
+      } else {
+        setCorePoolSize(threads);
+        setMaximumPoolSize(threads);
+      }
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable throwable) {
+      super.afterExecute(task, throwable);
+      if (throwable != null) {
+        failed.incrementAndGet();
+        logger.error("Uncaught error in the {} lane", name, throwable);
+        return;
+      }
+
+      // The tasks given to submit(), and the JavaFX tasks, keep their exception in their
+      // future, it is reported by whoever reads the result
+      if (task instanceof Future<?> future && future.isDone()) {
+        try {
+          future.get();
+        } catch (CancellationException e) {
+          // A canceled task neither completed nor failed
+          return;
+        } catch (ExecutionException e) {
+          failed.incrementAndGet();
+          logger.debug("Task failed in the {} lane", name, e.getCause());
+          return;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      completed.incrementAndGet();
+    }
+
+    @Override
+    public void shutdown() {
+      throw new UnsupportedOperationException("The lanes of the extension are shared");
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      throw new UnsupportedOperationException("The lanes of the extension are shared");
+    }
+
+    private String describe() {
+      String size = getMaximumPoolSize() == Integer.MAX_VALUE
+          ? "unbounded" : String.valueOf(getMaximumPoolSize());
+      return String.format("%s: %d/%s threads, %d active, %d queued, %d completed, %d failed",
+          name, getPoolSize(), size, getActiveCount(), getQueue().size(), completed.get(),
+          failed.get());
+    }
+  }
+
+  /**
+   * Runs the tasks given to it one after the other on the threads of a lane.
+   */
+  private static final class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor lane;
+    private Runnable active;
+
+    private SerialExecutor(Executor lane) {
+      this.lane = lane;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      tasks.add(() -> {
+        try {
+          task.run();
+        } finally {
+          scheduleNext();
+        }
+      });
+      if (active == null) {
+        scheduleNext();
+      }
+    }
+
+    private synchronized void scheduleNext() {
+      active = tasks.poll();
+      if (active != null) {
+        lane.execute(active);
+      }
+    }
+  }
+}
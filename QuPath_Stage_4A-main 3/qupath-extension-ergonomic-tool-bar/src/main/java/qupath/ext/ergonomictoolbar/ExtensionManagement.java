@@ -70,11 +70,57 @@ public class ExtensionManagement implements QuPathExtension, GitHubProject {
   private static final BooleanProperty enableExtensionProperty =
       PathPrefs.createPersistentPreference("enableExtension", true);
   /**
-   * Another 'persistent preference'.
-   * This one will be managed using a GUI element created by the extension.
+   * Number of threads shared by the work of the extension, see {@link ExtensionExecutors}.
    */
   private static final Property<Integer> numThreadsProperty =
-      PathPrefs.createPersistentPreference("demo.num.threads", 1).asObject();
+      PathPrefs.createPersistentPreference("ergonomicToolbar.workerThreads",
+          Runtime.getRuntime().availableProcessors()).asObject();
+  /**
+   * Number of threads used by each operator of the classifier running in QuPath.
+   * Half of the processors by default, the lanes and the tiling streams keep running
+   * during the inference.
+   */
+  private static final Property<Integer> inferenceThreadsProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.inference.threads",
+          Math.max(1, Runtime.getRuntime().availableProcessors() / 2)).asObject();
+  /**
+   * Maximum number of tiles classified together.
+   */
+  private static final Property<Integer> inferenceBatchSizeProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.inference.batchSize", 32).asObject();
+  /**
+   * Whether the background tiles are labelled without being classified.
+   */
+  private static final BooleanProperty backgroundFilterProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.backgroundFilter", true);
+  /**
+   * Maximum number of images annotated at once when annotating a whole project.
+   */
+  private static final Property<Integer> imagesInFlightProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.batch.imagesInFlight", 2)
+          .asObject();
+  /**
+   * Whether the uniform regions are classified at low resolution before the tiles.
+   */
+  private static final BooleanProperty cascadeProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.cascade", false);
+  /**
+   * Maximum size in megabytes of the decoded tiles held at once, a quarter of the heap by default.
+   */
+  private static final Property<Integer> tileMemoryBudgetProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.tileMemoryMB",
+          (int) Math.max(64, Runtime.getRuntime().maxMemory() / (4 * 1024 * 1024))).asObject();
+  /**
+   * Whether the tiles whose colours leave no doubt are labelled without the model.
+   */
+  private static final BooleanProperty preClassifierProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.preClassifier", false);
+  /**
+   * Minimum probability for a tile to be labelled by the colour pre-classifier.
+   */
+  private static final Property<Double> preClassifierConfidenceProperty =
+      PathPrefs.createPersistentPreference("ergonomicToolbar.preClassifier.confidence", 0.95)
+          .asObject();
   private static MenuItem toolbarVisibilityMenuItem;
   /**
    * Flag indicating whether the extension is already installed.
@@ -82,14 +128,86 @@ public class ExtensionManagement implements QuPathExtension, GitHubProject {
   private boolean isInstalled = false;
 
   /**
-   * An example of how to expose persistent preferences to other classes in your extension.
+   * Get the number of threads shared by the work of the extension.
    *
-   * @return The persistent preference, so that it can be read or set somewhere else.
+   * @return The persistent preference.
    */
   public static Property<Integer> numThreadsProperty() {
     return numThreadsProperty;
   }
 
+  /**
+   * Get the number of threads used by the classifier running in QuPath.
+   *
+   * @return The persistent preference.
+   */
+  public static Property<Integer> inferenceThreadsProperty() {
+    return inferenceThreadsProperty;
+  }
+
+  /**
+   * Get the maximum number of tiles classified together.
+   *
+   * @return The persistent preference.
+   */
+  public static Property<Integer> inferenceBatchSizeProperty() {
+    return inferenceBatchSizeProperty;
+  }
+
+  /**
+   * Get whether the background tiles are labelled without being classified.
+   *
+   * @return The persistent preference.
+   */
+  public static BooleanProperty backgroundFilterProperty() {
+    return backgroundFilterProperty;
+  }
+
+  /**
+   * Get the maximum number of images annotated at once when annotating a whole project.
+   *
+   * @return The persistent preference.
+   */
+  public static Property<Integer> imagesInFlightProperty() {
+    return imagesInFlightProperty;
+  }
+
+  /**
+   * Get whether the uniform regions are classified at low resolution before the tiles.
+   *
+   * @return The persistent preference.
+   */
+  public static BooleanProperty cascadeProperty() {
+    return cascadeProperty;
+  }
+
+  /**
+   * Get the maximum size in megabytes of the decoded tiles held at once.
+   *
+   * @return The persistent preference.
+   */
+  public static Property<Integer> tileMemoryBudgetProperty() {
+    return tileMemoryBudgetProperty;
+  }
+
+  /**
+   * Get whether the tiles whose colours leave no doubt are labelled without the model.
+   *
+   * @return The persistent preference.
+   */
+  public static BooleanProperty preClassifierProperty() {
+    return preClassifierProperty;
+  }
+
+  /**
+   * Get the minimum probability for a tile to be labelled by the colour pre-classifier.
+   *
+   * @return The persistent preference.
+   */
+  public static Property<Double> preClassifierConfidenceProperty() {
+    return preClassifierConfidenceProperty;
+  }
+
   /**
    * Opens a web page with written and video tutorials.
    */
@@ -173,10 +291,79 @@ public class ExtensionManagement implements QuPathExtension, GitHubProject {
         .description("Enable our Ergonomic ToolBar Extension")
         .build();
 
+    var workerThreadsItem = new PropertyItemBuilder<>(numThreadsProperty, Integer.class)
+        .name("Worker threads")
+        .category("Ergonomic Toolbar")
+        .description("Number of threads reading and preparing the tiles, shared by all the "
+            + "work of the extension")
+        .build();
+
+    var inferenceThreadsItem = new PropertyItemBuilder<>(inferenceThreadsProperty, Integer.class)
+        .name("Inference threads")
+        .category("Ergonomic Toolbar")
+        .description("Number of threads used to classify the tiles with an exported model. "
+            + "They run along the worker threads, together they should not exceed "
+            + "the number of processors by much")
+        .build();
+
+    var inferenceBatchSizeItem =
+        new PropertyItemBuilder<>(inferenceBatchSizeProperty, Integer.class)
+            .name("Inference batch size")
+            .category("Ergonomic Toolbar")
+            .description("Maximum number of tiles classified together, "
+                + "reduced automatically when the free memory is low")
+            .build();
+
+    var backgroundFilterItem =
+        new PropertyItemBuilder<>(backgroundFilterProperty, Boolean.class)
+            .name("Skip background tiles")
+            .category("Ergonomic Toolbar")
+            .description("Label the tiles showing mostly glass or fat \"Other\" "
+                + "without classifying them")
+            .build();
+
+    var imagesInFlightItem = new PropertyItemBuilder<>(imagesInFlightProperty, Integer.class)
+        .name("Images in flight")
+        .category("Ergonomic Toolbar")
+        .description("Maximum number of images annotated at once when annotating a project")
+        .build();
+
+    var cascadeItem = new PropertyItemBuilder<>(cascadeProperty, Boolean.class)
+        .name("Coarse-to-fine classification")
+        .category("Ergonomic Toolbar")
+        .description("Classify groups of tiles at low resolution first, and only the uncertain "
+            + "groups and the borders between classes tile by tile (exported model only)")
+        .build();
+
+    var tileMemoryBudgetItem =
+        new PropertyItemBuilder<>(tileMemoryBudgetProperty, Integer.class)
+            .name("Tile memory budget (MB)")
+            .category("Ergonomic Toolbar")
+            .description("Maximum memory used by the decoded tiles waiting to be encoded or "
+                + "classified, the reads wait when it is reached")
+            .build();
+
+    var preClassifierItem = new PropertyItemBuilder<>(preClassifierProperty, Boolean.class)
+        .name("Colour pre-classifier")
+        .category("Ergonomic Toolbar")
+        .description("Label the tiles whose colours leave no doubt without the model, with a "
+            + "classifier trained on the Viable, Necrotic and Other folders")
+        .build();
+
+    var preClassifierConfidenceItem =
+        new PropertyItemBuilder<>(preClassifierConfidenceProperty, Double.class)
+            .name("Pre-classifier confidence")
+            .category("Ergonomic Toolbar")
+            .description("Minimum probability, between 0 and 1, for a tile to be labelled by "
+                + "the colour pre-classifier, the other tiles are given to the model")
+            .build();
+
     qupath.getPreferencePane()
         .getPropertySheet()
         .getItems()
-        .add(propertyItem);
+        .addAll(propertyItem, workerThreadsItem, inferenceThreadsItem, inferenceBatchSizeItem,
+            backgroundFilterItem, imagesInFlightItem, cascadeItem, tileMemoryBudgetItem,
+            preClassifierItem, preClassifierConfidenceItem);
   }
 
   /**
@@ -223,6 +410,11 @@ public class ExtensionManagement implements QuPathExtension, GitHubProject {
     tileAreaMenuItem.setOnAction(e -> TileModificationController.getInstance().createStage());
     ergonomicToolbarMenu.getItems().add(tileAreaMenuItem);
 
+    // Add a Sub-Menu annotating all the images of the project
+    MenuItem projectAnnotationMenuItem = new MenuItem("Annotate All Project Images");
+    projectAnnotationMenuItem.setOnAction(e -> ProjectAnnotation.annotateCurrentProject());
+    ergonomicToolbarMenu.getItems().add(projectAnnotationMenuItem);
+
     // Add an Access to tutorials Sub-Menu
     MenuItem tutorialsMenuItem = new MenuItem("Tutorials (web)");
     tutorialsMenuItem.setOnAction(e -> goToTutorialsPage());
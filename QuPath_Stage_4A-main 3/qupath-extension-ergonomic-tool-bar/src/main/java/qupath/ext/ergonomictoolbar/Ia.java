@@ -1,31 +1,46 @@
 package qupath.ext.ergonomictoolbar;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleConsumer;
 import javafx.application.Platform;
 import javafx.concurrent.Task;
-import javax.imageio.ImageIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.controllers.ToolbarController;
+import qupath.ext.ergonomictoolbar.ia.BackgroundFilter;
+import qupath.ext.ergonomictoolbar.ia.BatchSizing;
+import qupath.ext.ergonomictoolbar.ia.ClassificationWorker;
+import qupath.ext.ergonomictoolbar.ia.ColorPreClassifier;
+import qupath.ext.ergonomictoolbar.ia.HierarchyBatcher;
+import qupath.ext.ergonomictoolbar.ia.OnnxTileClassifier;
+import qupath.ext.ergonomictoolbar.ia.PredictionCache;
+import qupath.ext.ergonomictoolbar.ia.QuadtreeCascade;
+import qupath.ext.ergonomictoolbar.ia.ReadResolution;
+import qupath.ext.ergonomictoolbar.ia.TensorPreprocessor;
+import qupath.ext.ergonomictoolbar.ia.TensorRing;
+import qupath.ext.ergonomictoolbar.ia.TileClassifier;
+import qupath.ext.ergonomictoolbar.ia.TilePipeline;
+import qupath.ext.ergonomictoolbar.ia.TileRecord;
 import qupath.ext.ergonomictoolbar.utils.AlertUtils;
 import qupath.ext.ergonomictoolbar.utils.AnnotationUtils;
 import qupath.ext.ergonomictoolbar.utils.FileUtils;
@@ -37,6 +52,7 @@ import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
@@ -45,8 +61,6 @@ import qupath.lib.scripting.QP;
  * Class that contains the methods for the automatic annotation of the images.
  */
 public class Ia {
-  private static final int NB_THREADS = Runtime.getRuntime().availableProcessors();
-
   //To define the space between tiles, please change the "spacing" value right below
   //A low value means you might need to zoom in order to make tiles more identifiable
   //A high value will make the Ia lose more information dring the analysis
@@ -54,12 +68,64 @@ public class Ia {
   //1 is the desired minimum, 20 is a good value for visibility
   private static final int spacing = 20;
 
-  private static int tiles_count = 0;
+  private static final Logger logger = LoggerFactory.getLogger(Ia.class);
+
+  // Number of tiles in each archive sent to the classifier
+  private static final int BATCH_SIZE = 256;
+
+  /**
+   * Maximum width in pixels, at the reading downsample, of a strip of tiles read at once.
+   */
+  public static final int MAX_BLOCK_WIDTH = 2048;
+
+  // Levels of the coarse-to-fine cascade above the tiles, 2 starts with cells of 4x4 tiles
+  private static final int CASCADE_LEVELS = 2;
+
+  // Minimum probability for the cascade to give the class of a cell to all its tiles
+  private static final double CASCADE_MIN_CONFIDENCE = 0.9;
+
+  // Report of the pyramid levels used to read the tiles, in the save folder
+  private static final String RESOLUTION_REPORT_FILE = "read_levels.csv";
+
+  /**
+   * Folder of the archives sent to the worker, in the save folder.
+   */
+  public static final String ARCHIVE_DIRECTORY = "tile_archives";
+
+  // Folder of the prediction cache, next to the project file
+  private static final String PREDICTION_CACHE_DIRECTORY = "classifier_cache";
+
+  // Classifier running in QuPath, kept between the runs
+  private static TileClassifier inProcessClassifier;
+  private static String inProcessClassifierKey;
+
+  // Runs using each classifier, one replaced is closed when its last run releases it
+  private static final Map<TileClassifier, Integer> inProcessClassifierUsers =
+      new IdentityHashMap<>();
+
+  // Model folders without training downsample for which the user has been warned
+  private static final Set<String> legacyModelFolders = ConcurrentHashMap.newKeySet();
+
+  // Colour pre-classifier, trained again when the training folders change
+  private static ColorPreClassifier preClassifier;
+  private static String preClassifierKey;
+
+  // Minimum delay between two progress updates sent to the interface
+  private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L;
+
+  // Annotation task in progress, only accessed from the JavaFX application thread
+  private static Task<HierarchyBatcher> currentTask;
 
   /**
    * Separate a "Tumor Area" annotation into 2 categories (viable tumor and necrosis).
+   * If an automatic annotation is already in progress, it is canceled instead.
    */
   public static void automaticAnnotation() {
+    if (currentTask != null) {
+      currentTask.cancel();
+      return;
+    }
+
     try {
       // Deleting of old images
       FileUtils.deleteDirectory(FileUtils.FILE_PATH_SAVE, "extracted_images");
@@ -89,7 +155,10 @@ public class Ia {
       AlertUtils.computationStarted();
       QuPathGUI gui = QuPathGUI.getInstance();
       ImageData<BufferedImage> imageData = gui.getImageData();
-      startAnnotationTask(imageData, annotations);
+
+      // The previous results are removed here, as it relies on the selection
+      removePreviousResults(annotations);
+      startAnnotationTask(imageData, new ArrayList<>(annotations));
     } catch (IOException e) {
       AlertUtils.computationCanceled();
     }
@@ -97,6 +166,8 @@ public class Ia {
 
   /**
    * Method that create a task for processing annotations.
+   * The tiles are read and classified on background threads, the hierarchy is updated
+   * on the JavaFX application thread.
    *
    * @param imageData   The data containing the image to which the annotations belong.
    * @param annotations A collection of annotations to be processed.
@@ -104,45 +175,102 @@ public class Ia {
   private static void startAnnotationTask(ImageData<BufferedImage> imageData,
                                           Collection<PathObject> annotations) {
     // Create a new task for processing annotations
-    Task<Void> task = new Task<>() {
+    BackgroundFilter backgroundFilter =
+        ExtensionManagement.backgroundFilterProperty().get() ? new BackgroundFilter() : null;
+
+    // Created before the task, so that the tiles already classified are kept if it stops
+    HierarchyBatcher batcher = new HierarchyBatcher(imageData.getHierarchy());
+
+    Task<HierarchyBatcher> task = new Task<>() {
+      private long lastProgressUpdate;
+
       @Override
-      protected Void call() {
-        // Run the annotation processing on the JavaFX application thread
-        Platform.runLater(() -> processAnnotations(imageData, annotations));
-        return null;
+      protected HierarchyBatcher call() throws Exception {
+        return processAnnotations(imageData, annotations, batcher, backgroundFilter,
+            this::reportProgress);
       }
 
       @Override
       protected void succeeded() {
-        AlertUtils.computationCompleted();
+        // Add the last tiles before displaying the rate
+        getValue().commit();
+        currentTask = null;
+        ToolbarFeatures.displayNecrosisRate();
+        AlertUtils.computationCompleted(
+            backgroundFilter != null ? backgroundFilter.getSkippedCount() : 0);
+      }
+
+      @Override
+      protected void cancelled() {
+        // Add the tiles classified before the cancellation, they are already journaled
+        batcher.commit();
+        currentTask = null;
+        ToolbarFeatures.displayNecrosisRate();
+        AlertUtils.computationCanceled();
       }
 
       @Override
       protected void failed() {
+        batcher.commit();
+        currentTask = null;
+        ToolbarFeatures.displayNecrosisRate();
         AlertUtils.computationFailed();
       }
+
+      // Called for every tile, so the updates sent to the interface are limited
+      private void reportProgress(double progress) {
+        long now = System.nanoTime();
+        if (progress >= 1 || now - lastProgressUpdate > PROGRESS_INTERVAL_NANOS) {
+          lastProgressUpdate = now;
+          updateProgress(progress, 1);
+        }
+      }
     };
 
-    // Create the thread that will do the task
-    Thread thread = new Thread(task);
-    thread.setDaemon(true);
-    thread.start();
+    currentTask = task;
+    ToolbarController.getInstance().trackAnnotationTask(task);
+
+    // The task only coordinates, the tiles are read and encoded on the shared lanes
+    ExtensionExecutors.jobs().execute(task);
   }
 
   /**
-   * Method that create the tiles for the annotations.
+   * Method that remove the results of the previous automatic annotation.
    *
-   * @param imageData   The data containing the image to which the annotations belong.
-   * @param annotations A collection of annotations to be processed.
-   * @return the list of annotated tiles
+   * @param annotations The annotations of the image.
    */
-  public static List<PathObject> getAnnotedTiles(ImageData<BufferedImage> imageData,
-                                                 Collection<PathObject> annotations) {
+  private static void removePreviousResults(Collection<PathObject> annotations) {
     AnnotationUtils.removeClassAnnotations(annotations, "Tumor");
     AnnotationUtils.removeClassAnnotations(annotations, "Necrosis");
     AnnotationUtils.removeClassAnnotations(annotations, "Other");
+  }
 
-    List<PathObject> allTiles = new ArrayList<>();
+  /**
+   * Method that create the grids of tiles of the annotations.
+   *
+   * @param imageData   The data containing the image to which the annotations belong.
+   * @param annotations A collection of annotations to be processed.
+   * @return the grid of each "Tumor Area"
+   */
+  public static List<TileGrid> getTileGrids(ImageData<BufferedImage> imageData,
+                                            Collection<PathObject> annotations) {
+    return getTileGrids(imageData, annotations,
+        () -> Platform.runLater(AlertUtils::selectedAreaTooSmall));
+  }
+
+  /**
+   * Method that create the grids of tiles of the annotations.
+   * The tiles are kept as cells of their grid, the objects are only created for the results.
+   *
+   * @param imageData      The data containing the image to which the annotations belong.
+   * @param annotations    A collection of annotations to be processed.
+   * @param onAreaTooSmall Called for each "Tumor Area" too small to be tiled.
+   * @return the grid of each "Tumor Area"
+   */
+  static List<TileGrid> getTileGrids(ImageData<BufferedImage> imageData,
+                                     Collection<PathObject> annotations,
+                                     Runnable onAreaTooSmall) {
+    List<TileGrid> grids = new ArrayList<>();
 
     // Iterate over each annotation
     for (PathObject annotation : annotations) {
@@ -150,183 +278,805 @@ public class Ia {
       if (annotation.getPathClass() != null
           && Objects.equals(annotation.getPathClass().getName(), "Tumor Area")) {
         // Create tiles
-        List<PathObject> tiles = TilerUtils.tilesCreator(imageData, annotation, 224, spacing);
+        TileGrid grid = TilerUtils.gridCreator(imageData, annotation, 224, spacing);
 
         // If no tiles are created, show an alert indicating the selected area is too small
-        if (tiles == null) {
-          AlertUtils.selectedAreaTooSmall();
+        if (grid == null) {
+          onAreaTooSmall.run();
         } else {
-          allTiles.addAll(tiles);
+          grids.add(grid);
         }
       }
     }
 
-    return allTiles;
+    return grids;
   }
 
   /**
    * Method that starts the processing annotations.
    *
-   * @param imageData   The data containing the image to which the annotations belong.
-   * @param annotations A collection of annotations to be processed.
+   * @param imageData        The data containing the image to which the annotations belong.
+   * @param annotations      A collection of annotations to be processed.
+   * @param batcher          Receives the annotations of the classified tiles.
+   * @param backgroundFilter Finds the background tiles, or null to classify all the tiles.
+   * @param progress         Receives the fraction of tiles already classified.
+   * @return the batcher holding the tiles not yet added to the hierarchy
+   * @throws InterruptedException if the task is canceled
    */
-  private static void processAnnotations(ImageData<BufferedImage> imageData,
-                                         Collection<PathObject> annotations) {
-    List<PathObject> allTiles = getAnnotedTiles(imageData, annotations);
+  private static HierarchyBatcher processAnnotations(ImageData<BufferedImage> imageData,
+                                                     Collection<PathObject> annotations,
+                                                     HierarchyBatcher batcher,
+                                                     BackgroundFilter backgroundFilter,
+                                                     DoubleConsumer progress)
+      throws InterruptedException {
+    List<TileGrid> grids = getTileGrids(imageData, annotations,
+        () -> Platform.runLater(AlertUtils::selectedAreaTooSmall));
 
     // If there are any tiles created, process them in batches
-    if (!allTiles.isEmpty()) {
-      processTileBatch(imageData, allTiles);
+    if (grids.stream().anyMatch(grid -> grid.size() > 0)) {
+      processTileBatch(imageData, grids, QP.getProject(), batcher, backgroundFilter, progress);
     }
-
-    ToolbarFeatures.displayNecrosisRate();
+    return batcher;
   }
 
   /**
    * Method that do the processing for a batch.
+   * The tiles already classified by the current model are taken from the prediction cache,
+   * the background tiles are labelled "Other" without being classified,
+   * the others are classified in QuPath if the model has been exported, or by the worker.
+   * The classified tiles are labelled in their grid and their annotation is added to the
+   * hierarchy as soon as their prediction arrives.
    *
-   * @param imageData The data containing the image to which the annotations belong.
-   * @param tiles     The list of annotated tiles to be processed
+   * @param imageData        The data containing the image to which the annotations belong.
+   * @param grids            The grids of tiles to be processed
+   * @param project          The project keeping the prediction cache, or null.
+   * @param batcher          Receives the annotations of the classified tiles.
+   * @param backgroundFilter Finds the background tiles, or null to classify all the tiles.
+   * @param progress         Receives the fraction of tiles already classified.
+   * @throws InterruptedException if the processing is canceled
    */
-  private static void processTileBatch(ImageData<BufferedImage> imageData, List<PathObject> tiles) {
-    List<PathObject> annotationTiles = new ArrayList<>();
+  static void processTileBatch(ImageData<BufferedImage> imageData, List<TileGrid> grids,
+                               Project<BufferedImage> project, HierarchyBatcher batcher,
+                               BackgroundFilter backgroundFilter, DoubleConsumer progress)
+      throws InterruptedException {
     ImageServer<BufferedImage> server = imageData.getServer();
+    String nasPath = FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).getFirst();
+    TileGrid.Tiles tiles = TileGrid.Tiles.of(grids);
+
+    // Read the tiles at the downsample of the training tiles of the model
+    double tileWidth = grids.stream().mapToDouble(TileGrid::getTileWidth).max().orElse(0);
+    ReadResolution resolution =
+        ReadResolution.at(server, trainingDownsample(nasPath), tileWidth);
+    reportResolution(server, resolution, tiles.size());
 
-    File zipFile = createZipFile(server, tiles);
-    Map<String, String> results = executePythonScript(zipFile);
-    boolean b = zipFile.delete();
-    if (!b) {
-      System.err.println("Error deleting ZIP file");
+    double downsample = resolution.getDownsample();
+    File modelFile = inferenceModelFile(nasPath);
+    PredictionCache cache = openPredictionCache(project, server, downsample, modelFile);
+
+    // The tiles already classified by this model are added without being read
+    boolean[] cached = new boolean[tiles.size()];
+    for (int i = 0; i < tiles.size(); i++) {
+      ROI tileRoi = tiles.get(i);
+      Integer classification = cache.get(tileRoi);
+      if (classification != null) {
+        cached[i] = true;
+        addResult(tiles, i, tileRoi, classification, batcher);
+      }
     }
+    TileGrid.Tiles missing = tiles.select(i -> !cached[i]);
+    logger.info("{} tiles found in the prediction cache, {} to classify",
+        tiles.size() - missing.size(), missing.size());
 
-    // Process each tile and create annotations based on the results
-    for (PathObject tile : tiles) {
-      ROI tileRoi = tile.getROI();
-      PathObject annotationTile = PathObjects.createAnnotationObject(tileRoi);
-      String tileName = tile.getName() + ".tif";
-      String result = results.get(tileName);
+    if (backgroundFilter != null) {
+      missing = removeBackground(server, missing, backgroundFilter, batcher);
+    }
+    if (ExtensionManagement.preClassifierProperty().get() && !missing.isEmpty()) {
+      missing = classifyByColor(server, missing, nasPath, batcher);
+    }
 
-      if (result != null) {
+    try {
+      if (missing.isEmpty()) {
+        progress.accept(1);
+        return;
+      }
+
+      // Classify in QuPath when the model has been exported, without archive nor worker
+      TileClassifier tileClassifier;
+      try {
+        tileClassifier = acquireInProcessClassifier(modelFile);
+      } catch (IOException e) {
+        throw new RuntimeException("Error loading the model", e);
+      }
+
+      if (tileClassifier != null) {
         try {
-          int classification = Integer.parseInt(result);
-
-          // Set the path class based on the classification result
-          if (classification == 0) {
-            annotationTile.setPathClass(PathClass.fromString("Tumor"));
-          } else if (classification == 1) {
-            annotationTile.setPathClass(PathClass.fromString("Necrosis"));
-          } else if (classification == 2) {
-            annotationTile.setPathClass(PathClass.fromString("Other"));
+          if (ExtensionManagement.cascadeProperty().get()) {
+            missing = classifyCoarseToFine(server, missing, tileClassifier, batcher);
+          }
+          if (!missing.isEmpty()) {
+            classifyInProcess(server, downsample, missing, tileClassifier, cache, batcher,
+                progress);
           }
-        } catch (NumberFormatException e) {
-          System.err.println("Number format error for file " + tileName + ": " + result);
+        } finally {
+          releaseInProcessClassifier(tileClassifier);
         }
+      } else {
+        if (ExtensionManagement.cascadeProperty().get()) {
+          logger.info("The coarse-to-fine classification needs a model exported to ONNX");
+        }
+
+        // The tensors are handed over in shared memory when the worker can read them
+        TensorRing ring = ClassificationWorker.getInstance()
+            .getTensorRing(nasPath, inferenceBatchSize());
+        if (ring != null) {
+          classifyWithTensorRing(server, downsample, missing, ring, nasPath, cache, batcher,
+              progress);
+        } else {
+          classifyWithWorker(server, downsample, missing, cache, batcher, progress);
+        }
+      }
+    } finally {
+      try {
+        cache.save();
+      } catch (IOException e) {
+        logger.warn("Unable to save the prediction cache", e);
       }
-      annotationTiles.add(annotationTile);
+      logger.info("{} tiles: {} tumor, {} necrosis, {} other, {} without class", tiles.size(),
+          countLabel(grids, 0), countLabel(grids, 1), countLabel(grids, 2),
+          countLabel(grids, TileGrid.UNLABELLED));
+      logger.debug("Extension lanes at the end of the run:\n{}", ExtensionExecutors.report());
     }
-    imageData.getHierarchy().addObjects(annotationTiles);
   }
 
   /**
-   * Method that create the zip file with all the tile image ".tif".
+   * Method that label the background tiles "Other", so that they are neither read nor classified.
    *
-   * @param server The server used to retrieve and process the tiles' images.
-   * @param tiles  A list of {@code PathObject} representing the tiles to
-   *               be included in the ZIP file.
-   * @return A File object representing the created ZIP file, named "batch_images.zip".
-   * @throws RuntimeException If an error occurs during the creation of the
-   *                          ZIP file or processing of tiles.
-   */
-  private static File createZipFile(ImageServer<BufferedImage> server,
-                                    List<PathObject> tiles) {
-    File zipFile = new File("batch_images.zip");
-    int tilesPerThread = (int) Math.ceil((double) tiles.size() / NB_THREADS);
-    List<Thread> listThreads = new ArrayList<>();
-
-    // Synchronisation pour l'accès à ZipOutputStream
-    final Object zipLock = new Object();
-
-    try (FileOutputStream fos = new FileOutputStream(zipFile);
-         ZipOutputStream zos = new ZipOutputStream(fos)) {
-
-      // Diviser les tuiles en sous-listes et créer un thread pour chaque sous-liste
-      for (int i = 0; i < NB_THREADS; i++) {
-        int start = i * tilesPerThread;
-        int end = Math.min(start + tilesPerThread, tiles.size());
-
-        // Vérifier que start est inférieur à end avant de créer la sous-liste
-        if (start < end) {
-          List<PathObject> subList = tiles.subList(start, end);
-
-          Thread thread = new Thread(() -> {
-            for (PathObject tile : subList) {
-              BufferedImage image;
-              try {
-                image = createImageWithRequest(server, tile.getROI(), 20);
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-              String tileName = tile.getName();
-
-              // S'assurer que le nom du fichier n'est pas null
-              if (tileName != null) {
-                // Créer un fichier temporaire pour l'image TIFF
-                File oldFile;
-                File tempFile = null;
-
-                try {
-                  oldFile = File.createTempFile(tileName, ".tif");
-                  tempFile = new File(oldFile.getParent(), tileName + tiles_count + ".tif");
-                  tiles_count++;
-                  oldFile.delete();  // Supprimer l'ancien fichier temporaire
-
-                  ImageIO.write(image, "TIFF", tempFile);
-
-                  // Ajouter le fichier temporaire à l'archive ZIP
-                  try (FileInputStream fis = new FileInputStream(tempFile)) {
-                    synchronized (zipLock) {
-                      ZipEntry zipEntry = new ZipEntry(tempFile.getName());
-                      zos.putNextEntry(zipEntry);
-                      byte[] buffer = new byte[1024];
-                      int length;
-                      while ((length = fis.read(buffer)) > 0) {
-                        zos.write(buffer, 0, length);
-                      }
-                      zos.closeEntry();
-                    }
-                  }
-                } catch (IOException e) {
-                  e.printStackTrace();
-                } finally {
-                  if (tempFile != null) {
-                    tempFile.delete();  // Supprimer le fichier temporaire après usage
-                  }
-                }
+   * @param server           The server of the image.
+   * @param tiles            The tiles to be classified.
+   * @param backgroundFilter Finds the background tiles.
+   * @param batcher          Receives the annotations of the background tiles.
+   * @return the tiles that are not background
+   */
+  private static TileGrid.Tiles removeBackground(ImageServer<BufferedImage> server,
+                                                 TileGrid.Tiles tiles,
+                                                 BackgroundFilter backgroundFilter,
+                                                 HierarchyBatcher batcher) {
+    boolean[] background;
+    try {
+      background = backgroundFilter.findBackground(server, tiles);
+    } catch (IOException e) {
+      logger.warn("Unable to read the thumbnail, the background tiles are classified", e);
+      return tiles;
+    }
+
+    for (int i = 0; i < tiles.size(); i++) {
+      if (background[i]) {
+        addResult(tiles, i, tiles.get(i), 2, batcher);
+      }
+    }
+    TileGrid.Tiles tissueTiles = tiles.select(i -> !background[i]);
+    logger.info("{} background tiles skipped, {} to classify",
+        tiles.size() - tissueTiles.size(), tissueTiles.size());
+    return tissueTiles;
+  }
+
+  /**
+   * Method that label the tiles whose colours leave no doubt with the {@link ColorPreClassifier},
+   * so that they are neither read nor classified by the model.
+   * The labelled tiles are not put in the prediction cache, which only keeps the predictions
+   * of the model: they are labelled again by the next run, with its settings.
+   *
+   * @param server  The server of the image.
+   * @param tiles   The tiles to be classified.
+   * @param nasPath The folder of the model, containing the training folders.
+   * @param batcher Receives the annotations of the labelled tiles.
+   * @return the tiles left to the model
+   * @throws InterruptedException if the processing is canceled
+   */
+  private static TileGrid.Tiles classifyByColor(ImageServer<BufferedImage> server,
+                                                TileGrid.Tiles tiles, String nasPath,
+                                                HierarchyBatcher batcher)
+      throws InterruptedException {
+    double minConfidence = ExtensionManagement.preClassifierConfidenceProperty().getValue();
+    ColorPreClassifier colorClassifier;
+    int[] classes;
+    try {
+      colorClassifier = getPreClassifier(nasPath);
+      classes = colorClassifier.classify(server, tiles, minConfidence);
+    } catch (IOException e) {
+      logger.warn("Colour pre-classifier unavailable, all the tiles are given to the model", e);
+      return tiles;
+    }
+
+    for (int i = 0; i < tiles.size(); i++) {
+      if (classes[i] != ColorPreClassifier.UNRESOLVED) {
+        addResult(tiles, i, tiles.get(i), classes[i], batcher);
+      }
+    }
+    TileGrid.Tiles remaining = tiles.select(i -> classes[i] == ColorPreClassifier.UNRESOLVED);
+    logger.info("{} of {} tiles took the fast path of the colour pre-classifier "
+            + "(confidence {}), {} of {} since it was trained",
+        tiles.size() - remaining.size(), tiles.size(), minConfidence,
+        colorClassifier.getFastPathCount(), colorClassifier.getCheckedCount());
+    return remaining;
+  }
+
+  /**
+   * Method that get the colour pre-classifier.
+   * It is kept between the runs, and trained again if a training folder changed.
+   *
+   * @param nasPath The folder of the model, containing the training folders.
+   * @return the classifier
+   * @throws IOException          if a training folder is missing or empty
+   * @throws InterruptedException if the training is canceled
+   */
+  private static synchronized ColorPreClassifier getPreClassifier(String nasPath)
+      throws IOException, InterruptedException {
+    // Adding or removing a tile changes the date of its folder
+    StringBuilder key = new StringBuilder(new File(nasPath).getAbsolutePath());
+    for (String folder : ColorPreClassifier.CLASS_FOLDERS) {
+      key.append('|').append(new File(nasPath, folder).lastModified());
+    }
+
+    if (!key.toString().equals(preClassifierKey)) {
+      preClassifier = null;
+      preClassifierKey = null;
+      preClassifier = ColorPreClassifier.train(new File(nasPath));
+      preClassifierKey = key.toString();
+    }
+    return preClassifier;
+  }
+
+  /**
+   * Method that get the downsample at which the training tiles of the model were exported.
+   * A model folder that does not give it holds a model trained before the downsample was
+   * recorded: the user is warned once and the tiles are read at the downsample used then.
+   *
+   * @param nasPath The folder of the model.
+   * @return the downsample at which the tiles are read
+   */
+  private static double trainingDownsample(String nasPath) {
+    double downsample = ReadResolution.readTrainingDownsample(new File(nasPath));
+    if (Double.isNaN(downsample)) {
+      logger.warn("No {} in {}, the tiles are read at downsample {} as for the former models",
+          ReadResolution.TRAINING_DOWNSAMPLE_FILE, nasPath, ReadResolution.LEGACY_DOWNSAMPLE);
+      if (legacyModelFolders.add(nasPath)) {
+        Platform.runLater(AlertUtils::trainingDownsampleUnknown);
+      }
+      return ReadResolution.LEGACY_DOWNSAMPLE;
+    }
+    return downsample;
+  }
+
+  /**
+   * Method that log the pyramid level used to read the tiles and add it to the report.
+   *
+   * @param server     The server of the image.
+   * @param resolution The resolution at which the tiles are read.
+   * @param tileCount  The number of tiles of the run.
+   */
+  private static void reportResolution(ImageServer<BufferedImage> server,
+                                       ReadResolution resolution, int tileCount) {
+    String imageName = server.getMetadata().getName();
+    logger.info("Tiles of {} read from {}", imageName, resolution);
+
+    try {
+      resolution.appendToReport(FileUtils.FILE_PATH_SAVE.resolve(RESOLUTION_REPORT_FILE),
+          imageName, tileCount);
+    } catch (IOException e) {
+      logger.warn("Unable to write the resolution report", e);
+    }
+  }
+
+  /**
+   * Method that open the prediction cache of the current model, stored next to the project.
+   *
+   * @param project    The project of the image, or null to keep the cache in the save folder.
+   * @param server     The server of the image.
+   * @param downsample The downsample at which the tiles are read.
+   * @param modelFile  The file of the model that classifies the tiles, whose hash identifies it.
+   * @return the cache, which is not saved if its file cannot be opened
+   */
+  private static PredictionCache openPredictionCache(Project<BufferedImage> project,
+                                                     ImageServer<BufferedImage> server,
+                                                     double downsample, File modelFile) {
+    Path directory = project != null
+        ? project.getPath().getParent().resolve(PREDICTION_CACHE_DIRECTORY)
+        : FileUtils.FILE_PATH_SAVE.resolve(PREDICTION_CACHE_DIRECTORY);
+
+    try {
+      return PredictionCache.open(directory, server.getPath(), downsample, modelFile);
+    } catch (IOException e) {
+      logger.warn("Unable to open the prediction cache in {}", directory, e);
+      return PredictionCache.inMemory();
+    }
+  }
+
+  /**
+   * Method that classify the tiles with the classification worker.
+   * The tiles are archived by a {@link TilePipeline} and each archive is classified
+   * as soon as it is complete, while the next tiles are still being read.
+   *
+   * @param server     The server used to read the tiles.
+   * @param downsample The downsample at which the tiles are read.
+   * @param tiles      The list of annotated tiles to be processed
+   * @param cache      Receives the predictions.
+   * @param batcher    Receives the annotations of the classified tiles.
+   * @param progress   Receives the fraction of tiles already classified.
+   * @throws InterruptedException if the processing is canceled
+   */
+  private static void classifyWithWorker(ImageServer<BufferedImage> server, double downsample,
+                                         TileGrid.Tiles tiles, PredictionCache cache,
+                                         HierarchyBatcher batcher, DoubleConsumer progress)
+      throws InterruptedException {
+    Set<Integer> classified = ConcurrentHashMap.newKeySet();
+    List<Future<?>> classifications = Collections.synchronizedList(new ArrayList<>());
+    // The worker classifies one archive at a time
+    Executor classifier = ExtensionExecutors.serial(ExtensionExecutors.jobs());
+    int threads = ExtensionExecutors.workerThreads();
+
+    TilePipeline pipeline = TilePipeline.builder(server, downsample)
+        .readerThreads(threads)
+        .encoderThreads(threads)
+        .queueCapacity(4 * threads)
+        .batchSize(BATCH_SIZE)
+        .storeUncompressed(true)
+        .maxBlockWidth(MAX_BLOCK_WIDTH)
+        .outputDirectory(FileUtils.FILE_PATH_SAVE.resolve(ARCHIVE_DIRECTORY).toFile())
+        .build();
+
+    try {
+      // Classify each archive as soon as the pipeline hands it over
+      pipeline.run(tiles, zipFile -> {
+        FutureTask<Void> archiveTask = new FutureTask<>(() -> {
+          classifyArchive(zipFile, (tileName, result) -> {
+            int index = TilePipeline.entryIndex(tileName);
+
+            // A prediction may be sent twice if the worker was restarted during the archive
+            if (index >= 0 && index < tiles.size() && classified.add(index)) {
+              ROI tileRoi = tiles.get(index);
+              int classification = parseClassification(tileName, result);
+              addResult(tiles, index, tileRoi, classification, batcher);
+              if (classification >= 0) {
+                cache.put(tileRoi, classification);
+                saveJournalIfDue(cache);
               }
+              progress.accept((double) classified.size() / tiles.size());
             }
           });
+          if (!zipFile.delete()) {
+            logger.warn("Error deleting ZIP file {}", zipFile);
+          }
+        }, null);
+        classifications.add(archiveTask);
+        classifier.execute(archiveTask);
+      });
 
-          listThreads.add(thread);
-          thread.start();
-        }
+      for (Future<?> classification : classifications) {
+        classification.get();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Erreur lors de la création du fichier ZIP", e);
+    } catch (InterruptedException e) {
+      // Stop the archive being classified, the worker will be restarted by the next run
+      cancelAll(classifications);
+      ClassificationWorker.getInstance().cancel();
+      throw e;
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error executing Python script", e.getCause());
+    } finally {
+      cancelAll(classifications);
+    }
+
+    // The tiles without prediction are still added, without class
+    for (int i = 0; i < tiles.size(); i++) {
+      if (!classified.contains(i)) {
+        addResult(tiles, i, tiles.get(i), TileGrid.UNLABELLED, batcher);
       }
+    }
+    progress.accept(1);
+  }
 
-      // Attendre que tous les threads se terminent
-      for (Thread thread : listThreads) {
+  /**
+   * Method that classify the tiles with the classification worker, through a
+   * {@link TensorRing}. The tiles are converted to the input of the model in QuPath and each
+   * batch is written into a region of the ring, so neither TIFF nor archive is written and the
+   * worker reads the tensors without copying them. The next batches are converted while the
+   * worker classifies the previous ones.
+   *
+   * @param server     The server used to read the tiles.
+   * @param downsample The downsample at which the tiles are read.
+   * @param tiles      The list of annotated tiles to be processed
+   * @param ring       The ring shared with the worker.
+   * @param nasPath    The folder of the model.
+   * @param cache      Receives the predictions.
+   * @param batcher    Receives the annotations of the classified tiles.
+   * @param progress   Receives the fraction of tiles already classified.
+   * @throws InterruptedException if the processing is canceled
+   */
+  private static void classifyWithTensorRing(ImageServer<BufferedImage> server,
+                                             double downsample, TileGrid.Tiles tiles,
+                                             TensorRing ring, String nasPath,
+                                             PredictionCache cache, HierarchyBatcher batcher,
+                                             DoubleConsumer progress)
+      throws InterruptedException {
+    Set<Integer> classified = ConcurrentHashMap.newKeySet();
+    List<Future<?>> classifications = Collections.synchronizedList(new ArrayList<>());
+    // The worker classifies one region at a time
+    Executor classifier = ExtensionExecutors.serial(ExtensionExecutors.jobs());
+    int batchSize = ring.getRegionSize();
+    int modelBatchSize = inferenceBatchSize();
+
+    TilePipeline pipeline = TilePipeline.builder(server, downsample)
+        .readerThreads(ExtensionExecutors.workerThreads())
+        .encoderThreads(ExtensionExecutors.workerThreads())
+        .queueCapacity(2 * batchSize)
+        .batchSize(batchSize)
+        .maxBlockWidth(MAX_BLOCK_WIDTH)
+        .preprocessor(ring.getPreprocessor())
+        .build();
+
+    try {
+      pipeline.runDecoded(tiles, batch -> {
+        int region;
         try {
-          thread.join();
+          region = ring.acquire();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
         } catch (InterruptedException e) {
-          e.printStackTrace();
+          Thread.currentThread().interrupt();
+          throw new CancellationException("Classification canceled");
+        }
+
+        // The tensors go back to the pipeline when the listener returns
+        int[] indices = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+          ring.write(region, i, batch.get(i).getTensor());
+          indices[i] = batch.get(i).getIndex();
         }
+
+        FutureTask<Void> regionTask = new FutureTask<>(() -> {
+          ClassificationWorker.getInstance().classifyTensors(ring, region, indices.length,
+              nasPath, modelBatchSize, (position, result) -> {
+                int slot = parsePosition(position);
+                if (slot < 0 || slot >= indices.length || !classified.add(indices[slot])) {
+                  return;
+                }
+                ROI tileRoi = tiles.get(indices[slot]);
+                int classification = parseClassification(position, result);
+                addResult(tiles, indices[slot], tileRoi, classification, batcher);
+                if (classification >= 0) {
+                  cache.put(tileRoi, classification);
+                  saveJournalIfDue(cache);
+                }
+                progress.accept((double) classified.size() / tiles.size());
+              });
+          return null;
+        }) {
+          @Override
+          protected void done() {
+            // Also called when the task is canceled before it starts
+            ring.release(region);
+          }
+        };
+        classifications.add(regionTask);
+        classifier.execute(regionTask);
+      });
+
+      for (Future<?> classification : classifications) {
+        classification.get();
+      }
+    } catch (IOException | UncheckedIOException e) {
+      throw new RuntimeException("Error during the classification", e);
+    } catch (CancellationException e) {
+      throw new InterruptedException("Classification canceled");
+    } catch (InterruptedException e) {
+      // Stop the region being classified, the worker will be restarted by the next run
+      cancelAll(classifications);
+      ClassificationWorker.getInstance().cancel();
+      throw e;
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error executing Python script", e.getCause());
+    } finally {
+      cancelAll(classifications);
+    }
+
+    // The tiles without prediction are still added, without class
+    for (int i = 0; i < tiles.size(); i++) {
+      if (!classified.contains(i)) {
+        addResult(tiles, i, tiles.get(i), TileGrid.UNLABELLED, batcher);
       }
+    }
+    progress.accept(1);
+  }
+
+  /**
+   * Method that cancel the classifications not finished yet.
+   *
+   * @param classifications The classifications of the archives.
+   */
+  private static void cancelAll(List<Future<?>> classifications) {
+    synchronized (classifications) {
+      for (Future<?> classification : classifications) {
+        classification.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Method that classify the large uniform regions at low resolution with a
+   * {@link QuadtreeCascade}, the tiles it cannot resolve are returned to be classified alone.
+   * The tiles it resolves are not put in the prediction cache, which only keeps the tiles
+   * classified at full resolution: they are resolved again by the next run, with its settings.
+   *
+   * @param server         The server used to read the tiles.
+   * @param tiles          The list of annotated tiles to be processed
+   * @param tileClassifier The classifier running in QuPath.
+   * @param batcher        Receives the annotations of the tiles resolved by the cascade.
+   * @return the tiles left to classify at full resolution
+   * @throws InterruptedException if the processing is canceled
+   */
+  private static TileGrid.Tiles classifyCoarseToFine(ImageServer<BufferedImage> server,
+                                                     TileGrid.Tiles tiles,
+                                                     TileClassifier tileClassifier,
+                                                     HierarchyBatcher batcher)
+      throws InterruptedException {
+    QuadtreeCascade cascade = new QuadtreeCascade(server, tileClassifier, CASCADE_LEVELS,
+        CASCADE_MIN_CONFIDENCE, inferenceBatchSize());
 
+    int[] classes;
+    try {
+      classes = cascade.classify(tiles);
     } catch (IOException e) {
-      throw new RuntimeException("Erreur lors de la création du fichier ZIP", e);
+      logger.warn("Coarse-to-fine classification failed, all the tiles are classified", e);
+      return tiles;
     }
-    tiles_count = 0;
-    return zipFile;
+
+    for (int i = 0; i < tiles.size(); i++) {
+      if (classes[i] != QuadtreeCascade.UNRESOLVED) {
+        addResult(tiles, i, tiles.get(i), classes[i], batcher);
+      }
+    }
+    TileGrid.Tiles remaining = tiles.select(i -> classes[i] == QuadtreeCascade.UNRESOLVED);
+    logger.info("{} full resolution tiles avoided with {} low resolution inferences, {} left",
+        cascade.getAvoidedCount(), cascade.getInferenceCount(), remaining.size());
+    return remaining;
   }
 
+  /**
+   * Method that classify the tiles with the model loaded in QuPath.
+   * The tiles are read in parallel and classified by batches of decoded images.
+   *
+   * @param server         The server used to read the tiles.
+   * @param downsample     The downsample at which the tiles are read.
+   * @param tiles          The list of annotated tiles to be processed
+   * @param tileClassifier The classifier running in QuPath.
+   * @param cache          Receives the predictions.
+   * @param batcher        Receives the annotations of the classified tiles.
+   * @param progress       Receives the fraction of tiles already classified.
+   * @throws InterruptedException if the processing is canceled
+   */
+  private static void classifyInProcess(ImageServer<BufferedImage> server, double downsample,
+                                        TileGrid.Tiles tiles, TileClassifier tileClassifier,
+                                        PredictionCache cache, HierarchyBatcher batcher,
+                                        DoubleConsumer progress) throws InterruptedException {
+    int batchSize = inferenceBatchSize();
+    // The tiles are converted to the input of the model on the cpu lane, during the inference
+    TensorPreprocessor preprocessor = tileClassifier.getPreprocessor();
+    TilePipeline pipeline = TilePipeline.builder(server, downsample)
+        .readerThreads(ExtensionExecutors.workerThreads())
+        .encoderThreads(ExtensionExecutors.workerThreads())
+        .queueCapacity(4 * batchSize)
+        .batchSize(batchSize)
+        .maxBlockWidth(MAX_BLOCK_WIDTH)
+        .preprocessor(preprocessor)
+        .build();
+
+    AtomicInteger classified = new AtomicInteger();
+    long start = System.nanoTime();
+
+    try {
+      pipeline.runDecoded(tiles, batch -> {
+        int[] classes;
+        try {
+          classes = preprocessor != null
+              ? tileClassifier.classifyTensors(batch.stream().map(TileRecord::getTensor).toList())
+              : tileClassifier.classify(batch.stream().map(TileRecord::getImage).toList());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+          int index = batch.get(i).getIndex();
+          ROI tileRoi = tiles.get(index);
+          addResult(tiles, index, tileRoi, classes[i], batcher);
+          cache.put(tileRoi, classes[i]);
+        }
+        saveJournalIfDue(cache);
+        progress.accept((double) classified.addAndGet(batch.size()) / tiles.size());
+      });
+    } catch (IOException | UncheckedIOException e) {
+      throw new RuntimeException("Error during the classification", e);
+    }
+
+    long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+    logger.info("{} tiles read and classified in {} ms ({} ms per tile)",
+        tiles.size(), elapsedMs, String.format("%.2f", (double) elapsedMs / tiles.size()));
+  }
+
+  /**
+   * Method that write the predictions already made to the journal of the cache,
+   * so that they are kept if the run stops before its end.
+   *
+   * @param cache The prediction cache.
+   */
+  private static void saveJournalIfDue(PredictionCache cache) {
+    try {
+      cache.saveIfDue();
+    } catch (IOException e) {
+      logger.warn("Unable to write the prediction journal", e);
+    }
+  }
+
+  /**
+   * Method that get the number of tiles classified together.
+   *
+   * @return the batch size set in the preferences, reduced if the free memory is low
+   */
+  private static int inferenceBatchSize() {
+    int batchSize = BatchSizing.adaptiveBatchSize(
+        ExtensionManagement.inferenceBatchSizeProperty().getValue());
+    logger.debug("Inference batch size: {}", batchSize);
+    return batchSize;
+  }
+
+  /**
+   * Method that get the file of the model that classifies the tiles.
+   * It is model.onnx, run in QuPath, unless model.pth has been trained again since it was
+   * exported: the weights are then run by the worker, so that an outdated model is never used.
+   *
+   * @param nasPath The folder of the model.
+   * @return model.onnx if it is up to date, model.pth otherwise
+   */
+  private static File inferenceModelFile(String nasPath) {
+    File onnxFile = new File(nasPath, OnnxTileClassifier.MODEL_FILE);
+    File weightsFile = new File(nasPath, "model.pth");
+    if (!onnxFile.isFile()) {
+      return weightsFile;
+    }
+    if (weightsFile.isFile() && onnxFile.lastModified() < weightsFile.lastModified()) {
+      logger.warn("{} is older than {}, the tiles are classified by the worker",
+          onnxFile, weightsFile);
+      return weightsFile;
+    }
+    return onnxFile;
+  }
+
+  /**
+   * Method that get the classifier running in QuPath, for a run that releases it with
+   * {@link #releaseInProcessClassifier(TileClassifier)}.
+   * It is kept between the runs, and loaded again if the model or the preference changed.
+   * The classifier it replaces is closed once no run uses it anymore.
+   *
+   * @param modelFile The file of the model, as given by {@link #inferenceModelFile(String)}.
+   * @return the classifier, or null if the model is not an up to date ONNX export
+   * @throws IOException if the model cannot be loaded
+   */
+  private static synchronized TileClassifier acquireInProcessClassifier(File modelFile)
+      throws IOException {
+    if (!modelFile.getName().equals(OnnxTileClassifier.MODEL_FILE)) {
+      return null;
+    }
+
+    int threads = ExtensionManagement.inferenceThreadsProperty().getValue();
+    String key = modelFile.getAbsolutePath() + "|" + modelFile.lastModified() + "|" + threads;
+    if (!key.equals(inProcessClassifierKey)) {
+      TileClassifier replaced = inProcessClassifier;
+      inProcessClassifier = null;
+      inProcessClassifierKey = null;
+      if (replaced != null && !inProcessClassifierUsers.containsKey(replaced)) {
+        replaced.close();
+      }
+      inProcessClassifier = new OnnxTileClassifier(modelFile.toPath(), threads);
+      inProcessClassifierKey = key;
+    }
+    inProcessClassifierUsers.merge(inProcessClassifier, 1, Integer::sum);
+    return inProcessClassifier;
+  }
+
+  /**
+   * Method that give back a classifier at the end of a run.
+   * It is closed if it has been replaced and no other run uses it.
+   *
+   * @param tileClassifier The classifier given by {@link #acquireInProcessClassifier(File)}.
+   */
+  private static synchronized void releaseInProcessClassifier(TileClassifier tileClassifier) {
+    Integer users = inProcessClassifierUsers.computeIfPresent(tileClassifier,
+        (classifier, count) -> count > 1 ? count - 1 : null);
+    if (users == null && tileClassifier != inProcessClassifier) {
+      tileClassifier.close();
+    }
+  }
+
+  /**
+   * Method that parse a classification result sent by the worker.
+   *
+   * @param tileName The name of the tile in the archive, used for the error messages.
+   * @param result   The class predicted by the model, or an error message.
+   * @return the predicted class, or -1 if the result is not a class
+   */
+  private static int parseClassification(String tileName, String result) {
+    try {
+      return Integer.parseInt(result);
+    } catch (NumberFormatException e) {
+      logger.warn("Number format error for file {}: {}", tileName, result);
+      return -1;
+    }
+  }
+
+  /**
+   * Method that parse the position of a tile in a region of the tensor ring, sent by the worker.
+   *
+   * @param position The position sent by the worker.
+   * @return the position, or -1 if it is not a number
+   */
+  private static int parsePosition(String position) {
+    try {
+      return Integer.parseInt(position);
+    } catch (NumberFormatException e) {
+      logger.warn("Number format error for the tensor position: {}", position);
+      return -1;
+    }
+  }
+
+  /**
+   * Method that label a tile in its grid and queue its annotation below the annotation from
+   * which it was created.
+   *
+   * @param tiles          The tiles being processed.
+   * @param position       The position of the tile in the list.
+   * @param tileRoi        The ROI of the tile.
+   * @param classification The class predicted by the model, or -1 for none.
+   * @param batcher        Receives the annotation of the tile.
+   */
+  private static void addResult(TileGrid.Tiles tiles, int position, ROI tileRoi,
+                                int classification, HierarchyBatcher batcher) {
+    TileGrid grid = tiles.getGrid(position);
+    grid.setLabel(tiles.getTile(position), classification);
+    batcher.add(grid.getParent(), createAnnotationTile(tileRoi, classification));
+  }
+
+  /**
+   * Method that count the tiles of a class in all the grids.
+   *
+   * @param grids          The grids of the run.
+   * @param classification The class, or {@link TileGrid#UNLABELLED}.
+   * @return the number of tiles
+   */
+  private static int countLabel(List<TileGrid> grids, int classification) {
+    return grids.stream().mapToInt(grid -> grid.countLabel(classification)).sum();
+  }
+
+  /**
+   * Method that create the annotation of a tile from its predicted class.
+   *
+   * @param tileRoi        The ROI of the tile.
+   * @param classification The class predicted by the model.
+   * @return the annotation, with a class if the prediction is valid
+   */
+  private static PathObject createAnnotationTile(ROI tileRoi, int classification) {
+    PathObject annotationTile = PathObjects.createAnnotationObject(tileRoi);
+
+    // Set the path class based on the classification result
+    if (classification == 0) {
+      annotationTile.setPathClass(PathClass.fromString("Tumor"));
+    } else if (classification == 1) {
+      annotationTile.setPathClass(PathClass.fromString("Necrosis"));
+    } else if (classification == 2) {
+      annotationTile.setPathClass(PathClass.fromString("Other"));
+    }
+    return annotationTile;
+  }
 
   /**
    * Method that create a image with a request of a ROI.
@@ -366,96 +1116,24 @@ public class Ia {
   }
 
   /**
-   * Method that execute the python script of the Ia model.
+   * Method that classify an archive of tiles with the Ia model.
+   * The archive is sent to the {@link ClassificationWorker}, which keeps the model loaded
+   * between the batches and between the runs.
    *
-   * @param zipFile The file representing the ZIP file to be processed by the Python script.
-   * @return A Map containing the results of the script execution.
-   * @throws RuntimeException If an error occurs during script extraction, execution,
-   *                          or output file reading.
+   * @param zipFile  The file representing the ZIP file to be classified.
+   * @param listener Called with the name and the predicted class of each tile, as soon as
+   *                 the prediction is read.
+   * @throws RuntimeException If the worker cannot classify the archive.
    */
-  private static Map<String, String> executePythonScript(File zipFile) {
+  private static void classifyArchive(File zipFile, BiConsumer<String, String> listener) {
     String nasPath = FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).getFirst();
 
-    // Extraire le script Python à un fichier temporaire
-    URL scriptUrl = Ia.class.getResource("controllers/python/Classification.exe");
-    if (scriptUrl == null) {
-      throw new RuntimeException("Python script not found in JAR");
-    }
-
-    Path tempScriptPath;
     try {
-      tempScriptPath = Files.createFile(Path.of("./Classification.exe"));
-      try (InputStream in = scriptUrl.openStream()) {
-        Files.copy(in, tempScriptPath, StandardCopyOption.REPLACE_EXISTING);
-      }
+      ClassificationWorker.getInstance()
+          .classify(zipFile, nasPath, inferenceBatchSize(), listener);
     } catch (IOException e) {
-      throw new RuntimeException("Error extracting Python script", e);
-    }
-
-    // Construire la commande pour exécuter le script Python
-    String[] command = {
-        "cmd.exe", "/c",
-        tempScriptPath.toString(),
-        zipFile.getAbsolutePath(),
-        nasPath,
-    };
-
-    // Créer un ProcessBuilder pour exécuter la commande
-    ProcessBuilder pb = new ProcessBuilder(command);
-    pb.redirectErrorStream(true);
-
-    // Définir le fichier de sortie
-    File outputFile = new File(nasPath, "output.txt");
-
-    try {
-      // Démarrer le processus
-      Process process = pb.start();
-
-      // Écrire la sortie du processus dans le fichier existant
-      try (BufferedReader reader = new BufferedReader(
-          new InputStreamReader(process.getInputStream()));
-           BufferedWriter writer = new BufferedWriter(
-               new FileWriter(outputFile, true))) {  // true pour le mode append
-
-        String line;
-        while ((line = reader.readLine()) != null) {
-          writer.write(line);
-          writer.newLine();
-        }
-      }
-
-      // Attendre la fin du processus
-      process.waitFor();
-    } catch (IOException | InterruptedException e) {
       throw new RuntimeException("Error executing Python script", e);
-    } finally {
-      // Supprimer le fichier temporaire
-      try {
-        Files.deleteIfExists(tempScriptPath);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-
-    // Lire le fichier de sortie pour analyser les résultats
-    Map<String, String> results = new HashMap<>();
-    try (BufferedReader fileReader = new BufferedReader(new FileReader(outputFile))) {
-      String line;
-      while ((line = fileReader.readLine()) != null) {
-        if (line.trim().isEmpty()) {
-          continue;
-        }
-
-        // Diviser chaque ligne en paires clé-valeur
-        String[] parts = line.split(":");
-        if (parts.length == 2) {
-          results.put(parts[0].trim(), parts[1].trim());
-        }
-      }
-    } catch (IOException e) {
-      throw new RuntimeException("Error reading output file", e);
     }
-    return results;
   }
 
   /**
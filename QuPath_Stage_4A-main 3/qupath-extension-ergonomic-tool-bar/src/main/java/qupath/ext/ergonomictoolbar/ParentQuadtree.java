@@ -0,0 +1,216 @@
+package qupath.ext.ergonomictoolbar;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
+
+/**
+ * Parent of a tiling split into quadrants, each clipped from its parent quadrant and prepared
+ * on its own, so that the predicates of a cell only visit the vertices around it.
+ *
+ * <p>The quadrants follow the cells of the grid, a cell is always in a single leaf. A quadrant
+ * is split again while its piece has more than {@link #MAX_LEAF_VERTICES} vertices and more
+ * than one cell, so a detection with tens of thousands of vertices and many holes ends up in
+ * pieces of about a thousand vertices. The whole tree is built at once, the quadrants being
+ * clipped in parallel on the common fork-join pool, the pool of the parallel tile streams.
+ * A cell has the same intersection with the piece of its leaf as with the whole parent, as
+ * the piece is the parent clipped to a box containing the cell.
+ */
+final class ParentQuadtree {
+  // Below this number of vertices, a quadrant is not split anymore
+  static final int MAX_LEAF_VERTICES = 1024;
+
+  private final Node root;
+  private final int leafCount;
+
+  private ParentQuadtree(Node root, int leafCount) {
+    this.root = root;
+    this.leafCount = leafCount;
+  }
+
+  /**
+   * Split a polygon into quadrants of a grid of cells.
+   *
+   * @param parent  the polygon to tile
+   * @param x0      the left of the first column
+   * @param y0      the top of the first row
+   * @param columns the number of columns
+   * @param rows    the number of rows
+   * @param pitchX  the distance between the lefts of two columns
+   * @param pitchY  the distance between the tops of two rows
+   * @return the quadtree, or null if the geometry is not a polygon or a multipolygon
+   */
+  static ParentQuadtree build(Geometry parent, double x0, double y0, long columns, long rows,
+                              double pitchX, double pitchY) {
+    if (!(parent instanceof Polygonal) || parent.isEmpty() || columns <= 0 || rows <= 0) {
+      return null;
+    }
+    Node root = new Node(0, columns, 0, rows, parent);
+    ForkJoinPool.commonPool().invoke(new Split(root, x0, y0, pitchX, pitchY));
+    return new ParentQuadtree(root, root.countLeaves());
+  }
+
+  /**
+   * Get the piece of the parent around a cell.
+   *
+   * @param column the column of the cell
+   * @param row    the row of the cell
+   * @return the parent clipped to the leaf of the cell, prepared for the predicates
+   */
+  PreparedGeometry getPiece(long column, long row) {
+    Node node = root;
+    while (node.children != null) {
+      node = node.children[node.childIndex(column, row)];
+    }
+    return node.prepared;
+  }
+
+  /**
+   * Get the number of pieces.
+   *
+   * @return the number of leaves of the tree
+   */
+  int getLeafCount() {
+    return leafCount;
+  }
+
+  /**
+   * Quadrant of the grid, columns and rows being counted from the first cell, ends excluded.
+   * Its fields are written by its split, before the tree is used.
+   */
+  private static final class Node {
+    private final long column0;
+    private final long column1;
+    private final long row0;
+    private final long row1;
+    private final Geometry piece;
+    private Node[] children;
+    private PreparedGeometry prepared;
+
+    private Node(long column0, long column1, long row0, long row1, Geometry piece) {
+      this.column0 = column0;
+      this.column1 = column1;
+      this.row0 = row0;
+      this.row1 = row1;
+      this.piece = piece;
+    }
+
+    private long middleColumn() {
+      return column0 + (column1 - column0) / 2;
+    }
+
+    private long middleRow() {
+      return row0 + (row1 - row0) / 2;
+    }
+
+    /**
+     * Find the child containing a cell, the children being ordered column half first.
+     */
+    private int childIndex(long column, long row) {
+      if (children.length == 4) {
+        return (column < middleColumn() ? 0 : 2) + (row < middleRow() ? 0 : 1);
+      }
+      // Split along a single direction
+      return column1 - column0 > 1 ? (column < middleColumn() ? 0 : 1)
+          : (row < middleRow() ? 0 : 1);
+    }
+
+    private int countLeaves() {
+      if (children == null) {
+        return 1;
+      }
+      int count = 0;
+      for (Node child : children) {
+        count += child.countLeaves();
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Clip the children of a quadrant, then split them in parallel.
+   */
+  private static final class Split extends RecursiveAction {
+    private final Node node;
+    private final double x0;
+    private final double y0;
+    private final double pitchX;
+    private final double pitchY;
+
+    private Split(Node node, double x0, double y0, double pitchX, double pitchY) {
+      this.node = node;
+      this.x0 = x0;
+      this.y0 = y0;
+      this.pitchX = pitchX;
+      this.pitchY = pitchY;
+    }
+
+    @Override
+    protected void compute() {
+      long columns = node.column1 - node.column0;
+      long rows = node.row1 - node.row0;
+      if (node.piece.getNumPoints() <= MAX_LEAF_VERTICES || columns * rows <= 1) {
+        node.prepared = PreparedGeometryFactory.prepare(node.piece);
+        return;
+      }
+
+      long column = node.middleColumn();
+      long row = node.middleRow();
+      Node[] children;
+      if (columns > 1 && rows > 1) {
+        children = new Node[] {
+            child(node.column0, column, node.row0, row),
+            child(node.column0, column, row, node.row1),
+            child(column, node.column1, node.row0, row),
+            child(column, node.column1, row, node.row1)};
+      } else if (columns > 1) {
+        children = new Node[] {
+            child(node.column0, column, node.row0, node.row1),
+            child(column, node.column1, node.row0, node.row1)};
+      } else {
+        children = new Node[] {
+            child(node.column0, node.column1, node.row0, row),
+            child(node.column0, node.column1, row, node.row1)};
+      }
+      for (Node child : children) {
+        if (child == null) {
+          // The overlay failed, the quadrant is kept whole
+          node.prepared = PreparedGeometryFactory.prepare(node.piece);
+          return;
+        }
+      }
+
+      node.children = children;
+      Split[] splits = new Split[children.length];
+      for (int i = 0; i < children.length; i++) {
+        splits[i] = new Split(children[i], x0, y0, pitchX, pitchY);
+      }
+      invokeAll(splits);
+    }
+
+    /**
+     * Clip the piece of the node to a quadrant. A margin keeps the edges of the box away from
+     * the cells.
+     *
+     * @return the child, or null if the overlay failed
+     */
+    private Node child(long column0, long column1, long row0, long row1) {
+      Envelope box = new Envelope(x0 + column0 * pitchX - 1, x0 + column1 * pitchX + 1,
+          y0 + row0 * pitchY - 1, y0 + row1 * pitchY + 1);
+      Geometry piece;
+      try {
+        piece = OverlayNGRobust.overlay(node.piece, node.piece.getFactory().toGeometry(box),
+            OverlayNG.INTERSECTION);
+      } catch (RuntimeException e) {
+        return null;
+      }
+      return new Node(column0, column1, row0, row1, piece);
+    }
+  }
+}
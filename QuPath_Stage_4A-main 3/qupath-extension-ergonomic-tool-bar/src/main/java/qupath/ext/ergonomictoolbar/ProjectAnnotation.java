@@ -0,0 +1,297 @@
+package qupath.ext.ergonomictoolbar;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.ia.BackgroundFilter;
+import qupath.ext.ergonomictoolbar.ia.HierarchyBatcher;
+import qupath.ext.ergonomictoolbar.utils.AlertUtils;
+import qupath.ext.ergonomictoolbar.utils.FileUtils;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.scripting.QP;
+
+/**
+ * Automatic annotation of all the images of a project.
+ *
+ * <p>Each image is opened from the project, its "Tumor Area" annotations are tiled and
+ * classified as by {@link Ia#automaticAnnotation()}, and the results are saved back to the
+ * project. Several images are processed at once, up to the "Images in flight" preference.
+ * Each image only loads its own prediction journal, so the memory used by the images in
+ * flight does not grow with the number of images of the project.
+ * Nothing is displayed, so it can also run without the GUI, from a script:
+ * <pre>
+ *   import qupath.ext.ergonomictoolbar.ProjectAnnotation
+ *   print ProjectAnnotation.run(getProject(), 2)
+ * </pre>
+ * An image open in a viewer is annotated through the data of the viewer, which displays the
+ * results and keeps them when it is saved again.
+ */
+public final class ProjectAnnotation {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectAnnotation.class);
+
+  // Project annotation in progress, only accessed from the JavaFX application thread
+  private static Task<String> currentTask;
+
+  private ProjectAnnotation() {
+  }
+
+  /**
+   * Annotate all the images of the current project on a background task.
+   * If the project is already being annotated, it is canceled instead.
+   */
+  public static void annotateCurrentProject() {
+    if (currentTask != null) {
+      currentTask.cancel();
+      return;
+    }
+
+    Project<BufferedImage> project = QP.getProject();
+    if (project == null) {
+      AlertUtils.noOpenProject();
+      return;
+    }
+    if (FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).isEmpty()) {
+      AlertUtils.noModelPath();
+      return;
+    }
+
+    int imagesInFlight = ExtensionManagement.imagesInFlightProperty().getValue();
+    Task<String> task = new Task<>() {
+      @Override
+      protected String call() throws Exception {
+        return ProjectAnnotation.run(project, imagesInFlight,
+            progress -> updateProgress(progress, 1));
+      }
+
+      @Override
+      protected void succeeded() {
+        currentTask = null;
+        ToolbarFeatures.displayNecrosisRate();
+        AlertUtils.projectAnnotationCompleted(getValue());
+      }
+
+      @Override
+      protected void cancelled() {
+        currentTask = null;
+        AlertUtils.computationCanceled();
+      }
+
+      @Override
+      protected void failed() {
+        currentTask = null;
+        logger.error("Project annotation failed", getException());
+        AlertUtils.computationFailed();
+      }
+    };
+
+    currentTask = task;
+    AlertUtils.computationStarted();
+
+    ExtensionExecutors.jobs().execute(task);
+  }
+
+  /**
+   * Annotate all the images of a project.
+   *
+   * @param project        the project containing the images
+   * @param imagesInFlight the maximum number of images processed at once
+   * @return a report with the number of images annotated, skipped and failed
+   * @throws InterruptedException if the thread is interrupted
+   */
+  public static String run(Project<BufferedImage> project, int imagesInFlight)
+      throws InterruptedException {
+    return run(project, imagesInFlight, progress -> {
+    });
+  }
+
+  /**
+   * Annotate all the images of a project.
+   *
+   * @param project        the project containing the images
+   * @param imagesInFlight the maximum number of images processed at once
+   * @param progress       receives the fraction of images already processed
+   * @return a report with the number of images annotated, skipped and failed
+   * @throws InterruptedException if the thread is interrupted
+   */
+  public static String run(Project<BufferedImage> project, int imagesInFlight,
+                           DoubleConsumer progress) throws InterruptedException {
+    if (FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).isEmpty()) {
+      throw new IllegalStateException("No model folder selected");
+    }
+
+    List<ProjectImageEntry<BufferedImage>> entries = project.getImageList();
+    BackgroundFilter backgroundFilter =
+        ExtensionManagement.backgroundFilterProperty().get() ? new BackgroundFilter() : null;
+
+    AtomicInteger annotated = new AtomicInteger();
+    AtomicInteger skipped = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger();
+
+    // Each image waits for its tiles to be read on the shared lanes
+    Semaphore inFlight = new Semaphore(Math.max(1, imagesInFlight));
+    List<Future<?>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+
+    try {
+      for (ProjectImageEntry<BufferedImage> entry : entries) {
+        inFlight.acquire();
+        futures.add(ExtensionExecutors.jobs().submit(() -> {
+          try {
+            if (annotateImage(project, entry, backgroundFilter)) {
+              annotated.incrementAndGet();
+            } else {
+              skipped.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (Exception e) {
+            logger.error("Unable to annotate {}", entry.getImageName(), e);
+            failed.incrementAndGet();
+          } finally {
+            inFlight.release();
+          }
+          progress.accept((double) done.incrementAndGet() / entries.size());
+        }));
+      }
+
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error during the project annotation", e.getCause());
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+
+    String report = String.format(
+        "%d images annotated, %d without tumor area, %d failed, in %d s%n",
+        annotated.get(), skipped.get(), failed.get(), (System.nanoTime() - start) / 1_000_000_000);
+    if (backgroundFilter != null) {
+      report += backgroundFilter.getSkippedCount() + " background tiles skipped\n";
+    }
+    logger.info("Project annotation\n{}", report);
+    return report;
+  }
+
+  /**
+   * Annotate an image of the project and save it.
+   *
+   * @return false if the image has no "Tumor Area" annotation
+   */
+  private static boolean annotateImage(Project<BufferedImage> project,
+                                       ProjectImageEntry<BufferedImage> entry,
+                                       BackgroundFilter backgroundFilter) throws Exception {
+    // A copy read from the project would be overwritten by the next save of the viewer
+    ImageData<BufferedImage> displayed =
+        callOnFxThread(() -> getDisplayedImageData(project, entry));
+    ImageData<BufferedImage> imageData = displayed != null ? displayed : entry.readImageData();
+    try {
+      PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+      List<PathObject> tumorAreas = new ArrayList<>();
+      List<PathObject> previousResults = new ArrayList<>();
+      for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+        String className =
+            annotation.getPathClass() == null ? null : annotation.getPathClass().getName();
+        if (Objects.equals(className, "Tumor Area")) {
+          tumorAreas.add(annotation);
+        } else if (Objects.equals(className, "Tumor") || Objects.equals(className, "Necrosis")
+            || Objects.equals(className, "Other")) {
+          previousResults.add(annotation);
+        }
+      }
+      if (tumorAreas.isEmpty()) {
+        return false;
+      }
+
+      // The tiles are added at once when all are classified
+      HierarchyBatcher batcher = HierarchyBatcher.deferred(hierarchy);
+      List<TileGrid> grids = Ia.getTileGrids(imageData, tumorAreas,
+          () -> logger.warn("A tumor area of {} is too small to be tiled",
+              entry.getImageName()));
+      int tileCount = grids.stream().mapToInt(TileGrid::size).sum();
+      if (tileCount == 0) {
+        return false;
+      }
+      Ia.processTileBatch(imageData, grids, project, batcher, backgroundFilter, progress -> {
+      });
+
+      Callable<Void> addResults = () -> {
+        hierarchy.removeObjects(previousResults, true);
+        batcher.commit();
+        return null;
+      };
+      if (displayed != null) {
+        callOnFxThread(addResults);
+      } else {
+        addResults.call();
+      }
+      entry.saveImageData(imageData);
+      logger.info("{} annotated with {} tiles", entry.getImageName(), tileCount);
+      return true;
+    } finally {
+      // The server of a displayed image still belongs to its viewer
+      if (displayed == null) {
+        imageData.getServer().close();
+      }
+    }
+  }
+
+  /**
+   * Get the data of an image of the project open in a viewer.
+   *
+   * @return the data displayed, or null if the image is not open or there is no GUI
+   */
+  private static ImageData<BufferedImage> getDisplayedImageData(
+      Project<BufferedImage> project, ProjectImageEntry<BufferedImage> entry) {
+    QuPathGUI gui = QuPathGUI.getInstance();
+    if (gui == null) {
+      return null;
+    }
+    for (QuPathViewer viewer : gui.getAllViewers()) {
+      ImageData<BufferedImage> imageData = viewer.getImageData();
+      if (imageData != null && Objects.equals(project.getEntry(imageData), entry)) {
+        return imageData;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Run a call on the JavaFX application thread and wait for its result.
+   * Without the JavaFX toolkit, as from a script, it runs on the calling thread.
+   */
+  private static <T> T callOnFxThread(Callable<T> callable) throws Exception {
+    if (QuPathGUI.getInstance() == null || Platform.isFxApplicationThread()) {
+      return callable.call();
+    }
+    FutureTask<T> task = new FutureTask<>(callable);
+    Platform.runLater(task);
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception cause ? cause : e;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package qupath.ext.ergonomictoolbar;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Tiles of an annotation, kept as cells of a grid instead of one object per tile.
+ *
+ * <p>The grid holds its origin, the pitch and the spacing of its cells, the indices of the
+ * cells kept by {@link AlternativeTiler#createGrid(PathObject)}, packed in an array, and one
+ * byte per tile for its class. The ROI of a tile is created each time it is asked for, only
+ * the tiles cropped to the annotation keep theirs. A tile then costs a few bytes instead of a
+ * tile object with its ROI, its geometry and its name, and the QuPath objects are only created
+ * for the results added to the hierarchy.
+ *
+ * <p>The tiles are numbered column after column, from the top of each column, in the order of
+ * {@link AlternativeTiler#streamGeometries}. Each label can be set from any thread, as long as
+ * a tile is labelled by a single one.
+ */
+public final class TileGrid {
+  /**
+   * Label of a tile not classified yet, or whose prediction failed.
+   */
+  public static final int UNLABELLED = -1;
+
+  private final PathObject parent;
+  private final ImagePlane plane;
+  private final int x0;
+  private final int y0;
+  private final int pitchX;
+  private final int pitchY;
+  private final int spacing;
+  private final int rows;
+  // Index of the cell of each tile, column after column
+  private final int[] cells;
+  // Sorted numbers of the tiles cropped to the parent, and their ROIs
+  private final int[] croppedTiles;
+  private final ROI[] croppedRois;
+  private final byte[] labels;
+
+  TileGrid(PathObject parent, ImagePlane plane, int x0, int y0, int pitchX, int pitchY,
+           int spacing, int rows, int[] cells, int[] croppedTiles, ROI[] croppedRois) {
+    this.parent = parent;
+    this.plane = plane;
+    this.x0 = x0;
+    this.y0 = y0;
+    this.pitchX = pitchX;
+    this.pitchY = pitchY;
+    this.spacing = spacing;
+    this.rows = rows;
+    this.cells = cells;
+    this.croppedTiles = croppedTiles;
+    this.croppedRois = croppedRois;
+    this.labels = new byte[cells.length];
+    Arrays.fill(labels, (byte) UNLABELLED);
+  }
+
+  /**
+   * Get the annotation that was tiled.
+   *
+   * @return the parent of the tiles
+   */
+  public PathObject getParent() {
+    return parent;
+  }
+
+  /**
+   * Get the number of tiles.
+   *
+   * @return the number of cells kept in the annotation
+   */
+  public int size() {
+    return cells.length;
+  }
+
+  /**
+   * Get the width of a tile that is not cropped.
+   *
+   * @return the width in pixels, without the spacing
+   */
+  public int getTileWidth() {
+    return pitchX - spacing;
+  }
+
+  /**
+   * Get the height of a tile that is not cropped.
+   *
+   * @return the height in pixels, without the spacing
+   */
+  public int getTileHeight() {
+    return pitchY - spacing;
+  }
+
+  /**
+   * Get the region of a tile.
+   *
+   * @param tile the number of the tile
+   * @return its ROI, created by this call unless the tile was cropped to the annotation
+   */
+  public ROI getRoi(int tile) {
+    int cropped = Arrays.binarySearch(croppedTiles, tile);
+    if (cropped >= 0) {
+      return croppedRois[cropped];
+    }
+    return ROIs.createRectangleROI((double) x0 + getColumn(tile) * pitchX,
+        (double) y0 + getRow(tile) * pitchY,
+        pitchX - spacing, pitchY - spacing, plane);
+  }
+
+  /**
+   * Get the column of the cell of a tile.
+   *
+   * @param tile the number of the tile
+   * @return the column, counted from the left of the grid
+   */
+  public int getColumn(int tile) {
+    return cells[tile] / rows;
+  }
+
+  /**
+   * Get the row of the cell of a tile.
+   *
+   * @param tile the number of the tile
+   * @return the row, counted from the top of the grid
+   */
+  public int getRow(int tile) {
+    return cells[tile] % rows;
+  }
+
+  /**
+   * Get the class of a tile.
+   *
+   * @param tile the number of the tile
+   * @return the class predicted for the tile, or {@link #UNLABELLED}
+   */
+  public int getLabel(int tile) {
+    return labels[tile];
+  }
+
+  /**
+   * Set the class of a tile.
+   *
+   * @param tile           the number of the tile
+   * @param classification the class predicted for the tile, a negative value for none
+   */
+  public void setLabel(int tile, int classification) {
+    labels[tile] = classification >= 0 && classification <= Byte.MAX_VALUE
+        ? (byte) classification : UNLABELLED;
+  }
+
+  /**
+   * Count the tiles of a class.
+   *
+   * @param classification the class, or {@link #UNLABELLED}
+   * @return the number of tiles with this label
+   */
+  public int countLabel(int classification) {
+    int count = 0;
+    for (byte label : labels) {
+      if (label == classification) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The tiles of several grids seen as a list of ROIs, numbered one grid after the other,
+   * or a selection of them. The ROIs are created by each call of {@link #get(int)}, so the list
+   * stays as small as its grids.
+   */
+  public static final class Tiles extends AbstractList<ROI> implements RandomAccess {
+    private final TileGrid[] grids;
+    // Number of the first tile of each grid, among all the tiles
+    private final int[] offsets;
+    // Numbers of the selected tiles among all the tiles, or null if all are selected
+    private final int[] selected;
+    private final int size;
+
+    private Tiles(TileGrid[] grids, int[] offsets, int[] selected, int size) {
+      this.grids = grids;
+      this.offsets = offsets;
+      this.selected = selected;
+      this.size = size;
+    }
+
+    /**
+     * Get all the tiles of some grids.
+     *
+     * @param grids the grids, in the order of their tiles
+     * @return the tiles
+     */
+    public static Tiles of(List<TileGrid> grids) {
+      // The empty grids are left out, so that the offsets are all different
+      List<TileGrid> filled = new ArrayList<>();
+      for (TileGrid grid : grids) {
+        if (grid.size() > 0) {
+          filled.add(grid);
+        }
+      }
+
+      int[] offsets = new int[filled.size()];
+      int size = 0;
+      for (int i = 0; i < filled.size(); i++) {
+        offsets[i] = size;
+        size = Math.addExact(size, filled.get(i).size());
+      }
+      return new Tiles(filled.toArray(new TileGrid[0]), offsets, null, size);
+    }
+
+    /**
+     * Select some of the tiles.
+     *
+     * @param keep tells from its position in this list whether a tile is kept
+     * @return the tiles kept, in the same order
+     */
+    public Tiles select(IntPredicate keep) {
+      int[] kept = new int[size];
+      int count = 0;
+      for (int position = 0; position < size; position++) {
+        if (keep.test(position)) {
+          kept[count++] = index(position);
+        }
+      }
+      return new Tiles(grids, offsets, Arrays.copyOf(kept, count), count);
+    }
+
+    /**
+     * Get the grid of a tile.
+     *
+     * @param position the position of the tile in this list
+     * @return its grid
+     */
+    public TileGrid getGrid(int position) {
+      return grids[gridOf(index(position))];
+    }
+
+    /**
+     * Get the number of a tile in its grid.
+     *
+     * @param position the position of the tile in this list
+     * @return its number in {@link #getGrid(int)}
+     */
+    public int getTile(int position) {
+      int index = index(position);
+      return index - offsets[gridOf(index)];
+    }
+
+    @Override
+    public ROI get(int position) {
+      int index = index(position);
+      int grid = gridOf(index);
+      return grids[grid].getRoi(index - offsets[grid]);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    private int index(int position) {
+      if (position < 0 || position >= size) {
+        throw new IndexOutOfBoundsException("Tile " + position + " of " + size);
+      }
+      return selected != null ? selected[position] : position;
+    }
+
+    private int gridOf(int index) {
+      int grid = Arrays.binarySearch(offsets, index);
+      return grid >= 0 ? grid : -grid - 2;
+    }
+  }
+}
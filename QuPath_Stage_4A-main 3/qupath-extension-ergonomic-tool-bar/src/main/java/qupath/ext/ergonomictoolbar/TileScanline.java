@@ -0,0 +1,215 @@
+package qupath.ext.ergonomictoolbar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+
+/**
+ * Position of the cells of each tile row relative to a polygon, found by a scanline.
+ *
+ * <p>For each row of cells, the edges of the polygon crossing the band of the row are clipped
+ * to it, which gives the x ranges where the boundary is. Between two ranges, no edge enters the
+ * band, so the cells there are either all inside or all outside the polygon, which the number
+ * of edges crossing the middle of the band on their left tells. Only the cells overlapping a
+ * range need the geometry predicates. The memory used depends on the number of edges, not on
+ * the area of the polygon.
+ */
+final class TileScanline {
+  /**
+   * The cell is outside the polygon, it does not even touch it.
+   */
+  static final byte OUTSIDE = 0;
+
+  /**
+   * The cell is inside the polygon, without touching its boundary.
+   */
+  static final byte INSIDE = 1;
+
+  /**
+   * The cell may cross the boundary of the polygon.
+   */
+  static final byte BOUNDARY = 2;
+
+  // Margin added to the boundary ranges, so that rounding never hides a crossing
+  private static final double EPSILON = 1e-6;
+
+  // Per row: the merged boundary ranges {start0, end0, start1, end1...}, and whether each gap
+  // before, between and after them is inside
+  private final double[][] ranges;
+  private final boolean[][] insideGaps;
+
+  private TileScanline(double[][] ranges, boolean[][] insideGaps) {
+    this.ranges = ranges;
+    this.insideGaps = insideGaps;
+  }
+
+  /**
+   * Scan a polygon, row after row.
+   *
+   * @param parent     the polygon to tile
+   * @param y0         the top of the first row
+   * @param rows       the number of rows
+   * @param rowPitch   the distance between the tops of two rows
+   * @param cellHeight the height of a cell, which may be less than the pitch
+   * @return the scanline, or null if the geometry is not a polygon or a multipolygon
+   */
+  static TileScanline create(Geometry parent, double y0, int rows, double rowPitch,
+                             double cellHeight) {
+    if (!(parent instanceof Polygonal) || parent.isEmpty()) {
+      return null;
+    }
+
+    // Edges {minY, maxY, x1, y1, x2, y2}, sorted by their top
+    List<double[]> edges = new ArrayList<>();
+    for (int i = 0; i < parent.getNumGeometries(); i++) {
+      Polygon polygon = (Polygon) parent.getGeometryN(i);
+      addEdges(polygon.getExteriorRing(), edges);
+      for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+        addEdges(polygon.getInteriorRingN(j), edges);
+      }
+    }
+    edges.sort(Comparator.comparingDouble(edge -> edge[0]));
+
+    double[][] ranges = new double[rows][];
+    boolean[][] insideGaps = new boolean[rows][];
+    List<double[]> active = new ArrayList<>();
+    int next = 0;
+
+    for (int row = 0; row < rows; row++) {
+      double top = y0 + row * rowPitch;
+      double bottom = top + cellHeight;
+      double middle = (top + bottom) / 2;
+
+      // The rows go down, an edge above the band is never needed again
+      while (next < edges.size() && edges.get(next)[0] <= bottom) {
+        active.add(edges.get(next++));
+      }
+      active.removeIf(edge -> edge[1] < top);
+
+      double[] clipped = new double[2 * active.size()];
+      double[] crossings = new double[active.size()];
+      int crossingCount = 0;
+      for (int e = 0; e < active.size(); e++) {
+        double[] edge = active.get(e);
+        double x1 = edge[2];
+        double y1 = edge[3];
+        double x2 = edge[4];
+        double y2 = edge[5];
+
+        double xa;
+        double xb;
+        if (y1 == y2) {
+          xa = x1;
+          xb = x2;
+        } else {
+          xa = x1 + (Math.max(top, edge[0]) - y1) * (x2 - x1) / (y2 - y1);
+          xb = x1 + (Math.min(bottom, edge[1]) - y1) * (x2 - x1) / (y2 - y1);
+        }
+        clipped[2 * e] = Math.min(xa, xb) - EPSILON;
+        clipped[2 * e + 1] = Math.max(xa, xb) + EPSILON;
+
+        // Half-open rule, a vertex on the line is counted once
+        if ((y1 <= middle) != (y2 <= middle)) {
+          crossings[crossingCount++] = x1 + (middle - y1) * (x2 - x1) / (y2 - y1);
+        }
+      }
+
+      ranges[row] = merge(clipped);
+      insideGaps[row] = parity(ranges[row], Arrays.copyOf(crossings, crossingCount));
+    }
+    return new TileScanline(ranges, insideGaps);
+  }
+
+  /**
+   * Find the position of a cell relative to the polygon.
+   *
+   * @param row   the row of the cell
+   * @param x     the left of the cell
+   * @param width the width of the cell
+   * @return {@link #OUTSIDE}, {@link #INSIDE} or {@link #BOUNDARY}
+   */
+  byte classify(int row, double x, double width) {
+    double[] rowRanges = ranges[row];
+    int count = rowRanges.length / 2;
+
+    // First range ending at or after the left of the cell
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (rowRanges[2 * mid + 1] < x) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    if (low < count && rowRanges[2 * low] <= x + width) {
+      return BOUNDARY;
+    }
+    return insideGaps[row][low] ? INSIDE : OUTSIDE;
+  }
+
+  private static void addEdges(LinearRing ring, List<double[]> edges) {
+    Coordinate[] coordinates = ring.getCoordinates();
+    for (int i = 0; i + 1 < coordinates.length; i++) {
+      Coordinate a = coordinates[i];
+      Coordinate b = coordinates[i + 1];
+      edges.add(new double[] {Math.min(a.y, b.y), Math.max(a.y, b.y), a.x, a.y, b.x, b.y});
+    }
+  }
+
+  /**
+   * Merge overlapping ranges {start, end, start, end...} into sorted disjoint ranges.
+   */
+  private static double[] merge(double[] clipped) {
+    int count = clipped.length / 2;
+    if (count == 0) {
+      return clipped;
+    }
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingDouble(i -> clipped[2 * i]));
+
+    double[] merged = new double[clipped.length];
+    int size = 0;
+    for (int i : order) {
+      double start = clipped[2 * i];
+      double end = clipped[2 * i + 1];
+      if (size > 0 && start <= merged[size - 1]) {
+        merged[size - 1] = Math.max(merged[size - 1], end);
+      } else {
+        merged[size++] = start;
+        merged[size++] = end;
+      }
+    }
+    return Arrays.copyOf(merged, size);
+  }
+
+  /**
+   * Whether each gap between the ranges is inside, from the number of crossings on its left.
+   * Every crossing lies in a range, so it is on the left of a gap if it is before its end.
+   */
+  private static boolean[] parity(double[] ranges, double[] crossings) {
+    Arrays.sort(crossings);
+    int count = ranges.length / 2;
+    boolean[] inside = new boolean[count + 1];
+    int left = 0;
+    for (int gap = 1; gap <= count; gap++) {
+      double gapStart = ranges[2 * gap - 1];
+      while (left < crossings.length && crossings[left] <= gapStart) {
+        left++;
+      }
+      inside[gap] = left % 2 == 1;
+    }
+    return inside;
+  }
+}
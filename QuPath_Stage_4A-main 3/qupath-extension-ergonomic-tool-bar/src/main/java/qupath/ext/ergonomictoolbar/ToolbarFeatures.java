@@ -17,6 +17,8 @@ import javafx.scene.paint.Color;
 import javax.imageio.ImageIO;
 import qupath.ext.ergonomictoolbar.controllers.AnnotationCreationController;
 import qupath.ext.ergonomictoolbar.controllers.ToolbarController;
+import qupath.ext.ergonomictoolbar.ia.HierarchyBatcher;
+import qupath.ext.ergonomictoolbar.ia.ReadResolution;
 import qupath.ext.ergonomictoolbar.utils.AlertUtils;
 import qupath.ext.ergonomictoolbar.utils.AnnotationUtils;
 import qupath.ext.ergonomictoolbar.utils.FileUtils;
@@ -122,8 +124,11 @@ public class ToolbarFeatures {
   private static void saveAnnotationAsTiff(ImageServer<BufferedImage> server, PathObject annotation,
                                            String outputPath) {
     try {
-      // Create an image from the annotation
-      BufferedImage image = Ia.createImageWithRequest(server, annotation.getROI(), 20);
+      // Create an image from the annotation, at the resolution of the training tiles of the model
+      ReadResolution resolution = ReadResolution.forTraining(server,
+          annotation.getROI().getBoundsWidth(), new File(outputPath).getParentFile());
+      BufferedImage image =
+          Ia.createImageWithRequest(server, annotation.getROI(), resolution.getDownsample());
       String tileName = annotation.getPathClass().getName() + countFilesInDirectory(outputPath);
 
       File outputFile = new File(outputPath, tileName + ".tif");
@@ -176,10 +181,15 @@ public class ToolbarFeatures {
 
   /**
    * Add listener for any change on the hierarchy.
+   * The commits of the automatic annotation are ignored, the rate is displayed once at its end.
    */
   public static void addHierarchyListener() {
     if (QP.getCurrentHierarchy() != null) {
-      QP.getCurrentHierarchy().addListener(observable -> displayNecrosisRate());
+      QP.getCurrentHierarchy().addListener(event -> {
+        if (!HierarchyBatcher.isBatcherEvent(event)) {
+          displayNecrosisRate();
+        }
+      });
     }
   }
 
@@ -22,6 +22,7 @@ import java.nio.file.WatchService;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ResourceBundle;
+import java.util.concurrent.Future;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -44,6 +45,7 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.ExtensionExecutors;
 import qupath.ext.ergonomictoolbar.ExtensionManagement;
 import qupath.ext.ergonomictoolbar.ImageNumberModel;
 import qupath.ext.ergonomictoolbar.utils.AlertUtils;
@@ -59,7 +61,7 @@ public class ModelManagementController implements Initializable {
 
   private WatchService watchService;
   private WatchKey watchKey;
-  private Thread watcherThread;
+  private Future<?> watcher;
 
   private static ModelManagementController instance;
   private Stage modelManagementStage;
@@ -101,11 +103,8 @@ public class ModelManagementController implements Initializable {
       updateDateLabel();
       updateTableView();
 
-      // Start a background thread to watch for changes in the folder
-      Thread watcherThread = new Thread(new FolderWatcher());
-      // Optional: Make the thread a daemon thread (runs in the background)
-      watcherThread.setDaemon(true);
-      watcherThread.start();
+      // Watch for changes in the folder in the background
+      startFolderWatcher();
     }
   }
 
@@ -210,9 +209,7 @@ public class ModelManagementController implements Initializable {
         }
       };
 
-      Thread thread = new Thread(task);
-      thread.setDaemon(true);
-      thread.start();
+      ExtensionExecutors.jobs().execute(task);
 
     } else {
       // Set an error message if no model path is selected
@@ -342,21 +339,19 @@ public class ModelManagementController implements Initializable {
     updateModelFilePathLabel();
     updateDateLabel();
 
-    // Stop the previous watcher thread if it exists and is still running
-    if (instance.watcherThread != null && instance.watcherThread.isAlive()) {
-      instance.watcherThread.interrupt(); // Interrupt the watcher thread
-      try {
-        instance.watcherThread.join(); // Wait for the thread to terminate
-      } catch (InterruptedException e) {
-        // Log an error if the thread join operation fails
-        logger.error("Failed to join watcher thread", e);
-      }
-    }
+    // Monitor the new directory
+    startFolderWatcher();
+  }
 
-    // Start a new watcher thread to monitor the new directory
-    instance.watcherThread = new Thread(new FolderWatcher());
-    instance.watcherThread.setDaemon(true); // Set the thread as a daemon thread
-    instance.watcherThread.start(); // Start the new watcher thread
+  /**
+   * Method that stop the previous watcher of the model folder, if any, and start a new one.
+   * The watcher waits for the changes of the folder, so it runs on the lane of the long tasks.
+   */
+  private static synchronized void startFolderWatcher() {
+    if (instance.watcher != null) {
+      instance.watcher.cancel(true);
+    }
+    instance.watcher = ExtensionExecutors.jobs().submit(instance.new FolderWatcher());
   }
 
   /**
@@ -458,10 +453,8 @@ public class ModelManagementController implements Initializable {
     updateDateLabel();
     updateTableView();
 
-    // Start a new watcher thread to monitor the new directory
-    instance.watcherThread = new Thread(new FolderWatcher());
-    instance.watcherThread.setDaemon(true); // Set the thread as a daemon thread
-    instance.watcherThread.start(); // Start the new watcher thread
+    // Monitor the folder again
+    startFolderWatcher();
   }
 
   /**
@@ -554,9 +547,7 @@ public class ModelManagementController implements Initializable {
       updateDateLabel();
       updateTableView();
 
-      Thread watcherThread = new Thread(new FolderWatcher());
-      watcherThread.setDaemon(true);
-      watcherThread.start();
+      startFolderWatcher();
     }
   }
 }
\ No newline at end of file
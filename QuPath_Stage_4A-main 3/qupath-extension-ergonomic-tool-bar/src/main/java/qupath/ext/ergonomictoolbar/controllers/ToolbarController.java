@@ -1,7 +1,6 @@
 package qupath.ext.ergonomictoolbar.controllers;
 
 import static java.lang.Math.round;
-import static qupath.ext.ergonomictoolbar.Ia.createImageWithRequest;
 import static qupath.lib.gui.scripting.QPEx.getQuPath;
 import static qupath.lib.scripting.QP.getCurrentHierarchy;
 import static qupath.lib.scripting.QP.getCurrentImageData;
@@ -30,8 +29,10 @@ import javafx.scene.text.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -42,9 +43,13 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
+import qupath.ext.ergonomictoolbar.ExtensionExecutors;
 import qupath.ext.ergonomictoolbar.ExtensionManagement;
 import qupath.ext.ergonomictoolbar.Ia;
 import qupath.ext.ergonomictoolbar.ToolbarFeatures;
+import qupath.ext.ergonomictoolbar.ia.HierarchyBatcher;
+import qupath.ext.ergonomictoolbar.ia.TilePipeline;
+import qupath.ext.ergonomictoolbar.ia.TileRecord;
 import qupath.ext.ergonomictoolbar.utils.AlertUtils;
 import qupath.ext.ergonomictoolbar.utils.FileUtils;
 import qupath.ext.ergonomictoolbar.utils.TilerUtils;
@@ -62,6 +67,7 @@ import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
 import qupath.lib.objects.hierarchy.events.PathObjectSelectionListener;
+import qupath.lib.roi.interfaces.ROI;
 
 /**
  * Controller that manage the actions of the toolbar
@@ -69,6 +75,9 @@ import qupath.lib.objects.hierarchy.events.PathObjectSelectionListener;
 public class ToolbarController implements PathObjectSelectionListener, QuPathViewerListener, PathObjectHierarchyListener {
   private final Logger logger = LoggerFactory.getLogger(ExtensionManagement.class);
 
+  // Tiles exported at full resolution are written a few at a time
+  private static final int EXPORT_BATCH_SIZE = 8;
+
   private static ToolbarController instance;
   private Stage toolbar;
 
@@ -192,6 +201,8 @@ public class ToolbarController implements PathObjectSelectionListener, QuPathVie
 
     try {
       FileUtils.deleteDirectory(FileUtils.FILE_PATH_SAVE, "extracted_images");
+      // Archives left by a run interrupted when QuPath was closed
+      FileUtils.deleteDirectory(FileUtils.FILE_PATH_SAVE, Ia.ARCHIVE_DIRECTORY);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -654,6 +665,27 @@ public class ToolbarController implements PathObjectSelectionListener, QuPathVie
     Ia.automaticAnnotation();
   }
 
+  /**
+   * Turn the "Automatic Annotation" button into a cancel button showing the progress,
+   * as long as the task is running.
+   *
+   * @param task the automatic annotation task
+   */
+  public void trackAnnotationTask(Task<?> task) {
+    String text = Button_AutomaticAnnotation.getText();
+
+    Button_AutomaticAnnotation.textProperty().bind(Bindings.createStringBinding(
+        () -> String.format("Cancel (%d%%)", round(Math.max(0, task.getProgress()) * 100)),
+        task.progressProperty()));
+
+    task.runningProperty().addListener((observable, wasRunning, running) -> {
+      if (!running) {
+        Button_AutomaticAnnotation.textProperty().unbind();
+        Button_AutomaticAnnotation.setText(text);
+      }
+    });
+  }
+
   // Merge annotation
   @FXML
   private void mergeTumorAndNecrosis() {
@@ -807,6 +839,11 @@ public class ToolbarController implements PathObjectSelectionListener, QuPathVie
 
   @Override
   public void hierarchyChanged(PathObjectHierarchyEvent event) {
+    // The results of the automatic annotation are not annotations drawn by the user
+    if (HierarchyBatcher.isBatcherEvent(event)) {
+      return;
+    }
+
     PathObjectHierarchy hierarchy = getCurrentHierarchy();
     PathObject selectedAnnotation = getSelectedObject();
 
@@ -938,88 +975,106 @@ public class ToolbarController implements PathObjectSelectionListener, QuPathVie
       }
       lineLength++;
     }
+    // Name the tiles in the sorted order, they are written in the order in which they are read
+    String fn = new File(imageServer.getPath()).getName();
+    String[] names = new String[selectedTiles.size()];
     int x = 0;
     int y = 0;
-    int tileCounter = 0;
-    // Iterate over all selected annotation objects
-    for (PathObject tile : selectedTiles) {
-      // Get the tiles
-      BufferedImage image;
-      try {
-        image = createImageWithRequest(imageServer, tile.getROI());
-      } catch (IOException e) {
-        e.printStackTrace();
-        return;
-      }
-      String name;
-      String fn = new File(imageServer.getPath()).getName();
-      String classe = tile.getDisplayedName();
-      name =
+    for (int tileCounter = 0; tileCounter < selectedTiles.size(); tileCounter++) {
+      String classe = selectedTiles.get(tileCounter).getDisplayedName();
+      names[tileCounter] =
           String.format("tile-%s-%s-%d-x%d-y%d-%s", fn, LocalDate.now(), tileCounter, x, y, classe);
       x++;
       if (x == lineLength) {
         x = 0;
         y++;
       }
-      tileCounter++;
-      try {
-        ImageIO.write(image, "tiff", new File("./datasets/" + name + ".tiff"));
-      } catch (IOException e) {
-        System.err.println("Erreur lors de l'exportation de l'image : " + e.getMessage());
-        e.printStackTrace();
-      }
     }
 
-    try {
-      URL resourceUrl = ToolbarController.class.getResource("python/viewer.exe");
-      if (resourceUrl == null) {
-          throw new IOException("Resource not found: /python/viewer.py");
+    // The tiles are read and written in the background, the rows in pooled images within the
+    // tile memory budget, in small batches since they are read at full resolution
+    List<ROI> rois = selectedTiles.stream().map(PathObject::getROI).toList();
+    Task<Void> task = new Task<>() {
+      @Override
+      protected Void call() throws Exception {
+        TilePipeline pipeline = TilePipeline.builder(imageServer, 1)
+            .batchSize(EXPORT_BATCH_SIZE)
+            .maxBlockWidth(Ia.MAX_BLOCK_WIDTH)
+            .build();
+        pipeline.runDecoded(rois, batch -> {
+          for (TileRecord tile : batch) {
+            String name = names[tile.getIndex()];
+            try {
+              ImageIO.write(tile.getImage(), "tiff", new File("./datasets/" + name + ".tiff"));
+            } catch (IOException e) {
+              logger.warn("Unable to export the tile {}", name, e);
+            }
+          }
+        });
+        openViewer();
+        return null;
       }
 
-      Path tempScriptPath;
-      if (new File("viewer.exe").exists()) {
-        // Remove the file if it exists
-        if (!new File("viewer.exe").delete()) {
-          throw new IOException("Failed to delete existing temp file");
-        }
+      @Override
+      protected void failed() {
+        logger.error("Error while exporting the tiles", getException());
       }
-      if (! new File("viewer.exe").exists()) {
-        try (InputStream in = resourceUrl.openStream()) {
-          tempScriptPath = Files.createFile(Path.of("./viewer.exe"));
-          Files.copy(in, tempScriptPath, StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            throw new IOException("Failed to copy resource to temp file", e);
-        }
-        // Check if the file exists
-        if (!tempScriptPath.toFile().exists()) {
-            throw new IOException("Failed to create temp file");
-        }
+    };
+    ExtensionExecutors.jobs().execute(task);
+  }
 
-        // Check if the file is executable
-        if (!tempScriptPath.toFile().setExecutable(true)) {
-            throw new IOException("Failed to set executable permission on temp file");
-        }
-      } else {
-        tempScriptPath = Path.of("viewer.exe");
+  /**
+   * Start the viewer on the exported tiles, and wait for it to be closed.
+   *
+   * @throws IOException          if the viewer cannot be started
+   * @throws InterruptedException if the thread is interrupted while the viewer is open
+   */
+  private static void openViewer() throws IOException, InterruptedException {
+    URL resourceUrl = ToolbarController.class.getResource("python/viewer.exe");
+    if (resourceUrl == null) {
+        throw new IOException("Resource not found: /python/viewer.py");
+    }
+
+    Path tempScriptPath;
+    if (new File("viewer.exe").exists()) {
+      // Remove the file if it exists
+      if (!new File("viewer.exe").delete()) {
+        throw new IOException("Failed to delete existing temp file");
+      }
+    }
+    if (! new File("viewer.exe").exists()) {
+      try (InputStream in = resourceUrl.openStream()) {
+        tempScriptPath = Files.createFile(Path.of("./viewer.exe"));
+        Files.copy(in, tempScriptPath, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+          throw new IOException("Failed to copy resource to temp file", e);
+      }
+      // Check if the file exists
+      if (!tempScriptPath.toFile().exists()) {
+          throw new IOException("Failed to create temp file");
       }
 
-      String NASPath = new File("./datasets/").getAbsolutePath();
-      NASPath = NASPath.substring(0, NASPath.length() - "./datasets/".length());
-      String ModelPath = FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).getFirst();
-      String[] command = {
-          "cmd.exe", "/c", tempScriptPath.toString(), NASPath, ModelPath
-      };
-      System.out.println("Command: " + String.join(" ", command));
-
-      ProcessBuilder pb = new ProcessBuilder(command);
-      pb.redirectErrorStream(true);
-
-      Process process = pb.start();
-      process.waitFor();
-      System.out.println("Viewer.exe started");
-    } catch (IOException | InterruptedException e) {
-        e.printStackTrace();
-        throw new RuntimeException("Error executing viewer.exe", e);
+      // Check if the file is executable
+      if (!tempScriptPath.toFile().setExecutable(true)) {
+          throw new IOException("Failed to set executable permission on temp file");
+      }
+    } else {
+      tempScriptPath = Path.of("viewer.exe");
     }
+
+    String NASPath = new File("./datasets/").getAbsolutePath();
+    NASPath = NASPath.substring(0, NASPath.length() - "./datasets/".length());
+    String ModelPath = FileUtils.readStringsFromFile(FileUtils.FILE_PATH_MODEL).getFirst();
+    String[] command = {
+        "cmd.exe", "/c", tempScriptPath.toString(), NASPath, ModelPath
+    };
+    System.out.println("Command: " + String.join(" ", command));
+
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectErrorStream(true);
+
+    Process process = pb.start();
+    process.waitFor();
+    System.out.println("Viewer.exe started");
   }
 }
@@ -0,0 +1,113 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Detection of the tiles showing only background (glass, fat), before they are classified.
+ *
+ * <p>A single low-resolution thumbnail covering all the tiles is read, where each tile is
+ * about {@link #THUMBNAIL_TILE_SIZE} pixels wide. A pixel is tissue if it is saturated enough
+ * and not too bright, and a tile with too few tissue pixels is background.
+ * This costs one region request for the whole run, instead of one read, encoding and
+ * inference per background tile.
+ */
+public class BackgroundFilter {
+  /**
+   * Width in pixels of a tile in the thumbnail.
+   */
+  public static final int THUMBNAIL_TILE_SIZE = 16;
+
+  private final double minSaturation;
+  private final int maxIntensity;
+  private final double minTissueFraction;
+  private final AtomicInteger skippedCount = new AtomicInteger();
+
+  /**
+   * Constructor with thresholds suited to brightfield H&amp;E slides.
+   */
+  public BackgroundFilter() {
+    this(0.07, 235, 0.1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param minSaturation     the minimum saturation of a tissue pixel, between 0 and 1
+   * @param maxIntensity      the maximum mean of the RGB values of a tissue pixel
+   * @param minTissueFraction the minimum fraction of tissue pixels in a tile that is kept
+   */
+  public BackgroundFilter(double minSaturation, int maxIntensity, double minTissueFraction) {
+    this.minSaturation = minSaturation;
+    this.maxIntensity = maxIntensity;
+    this.minTissueFraction = minTissueFraction;
+  }
+
+  /**
+   * Find the background tiles. They are added to the count of skipped tiles.
+   * Images that are not RGB are not filtered.
+   *
+   * @param server the server of the image
+   * @param tiles  the tiles to check
+   * @return for each tile, whether it is background
+   * @throws IOException if the thumbnail cannot be read
+   */
+  public boolean[] findBackground(ImageServer<BufferedImage> server, List<ROI> tiles)
+      throws IOException {
+    boolean[] background = new boolean[tiles.size()];
+    if (tiles.isEmpty() || !server.isRGB()) {
+      return background;
+    }
+
+    TileThumbnail thumbnail = TileThumbnail.read(server, tiles, THUMBNAIL_TILE_SIZE);
+    int[] pixels = thumbnail.getPixels();
+    int width = thumbnail.getWidth();
+
+    int skipped = 0;
+    for (int i = 0; i < tiles.size(); i++) {
+      int[] bounds = thumbnail.bounds(tiles.get(i));
+      background[i] = tissueFraction(pixels, width, bounds[0], bounds[1], bounds[2], bounds[3])
+          < minTissueFraction;
+      if (background[i]) {
+        skipped++;
+      }
+    }
+
+    skippedCount.addAndGet(skipped);
+    return background;
+  }
+
+  /**
+   * Get the number of background tiles found since this filter was created.
+   *
+   * @return the number of skipped tiles
+   */
+  public int getSkippedCount() {
+    return skippedCount.get();
+  }
+
+  private double tissueFraction(int[] pixels, int width, int x0, int y0, int x1, int y1) {
+    int tissue = 0;
+    for (int y = y0; y < y1; y++) {
+      int offset = y * width;
+      for (int x = x0; x < x1; x++) {
+        int rgb = pixels[offset + x];
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+
+        // Saturation of the HSV model, compared without division
+        if (max - min >= minSaturation * max && r + g + b <= 3 * maxIntensity) {
+          tissue++;
+        }
+      }
+    }
+    return (double) tissue / ((x1 - x0) * (y1 - y0));
+  }
+}
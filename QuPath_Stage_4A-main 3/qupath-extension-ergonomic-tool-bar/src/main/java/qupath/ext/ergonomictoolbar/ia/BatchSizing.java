@@ -0,0 +1,52 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Choice of the number of tiles classified together.
+ * The batch size set in the preferences is an upper bound, reduced when the free memory
+ * would not hold a whole batch.
+ */
+public final class BatchSizing {
+  /**
+   * Memory needed to classify one 224x224 tile with ResNet18: the input tensor and the
+   * largest intermediate activations, rounded up.
+   */
+  static final long BYTES_PER_TILE = 32L * 1024 * 1024;
+
+  // Share of the free memory a batch may use, the rest is left to QuPath and the image cache
+  private static final double MEMORY_FRACTION = 0.5;
+
+  private BatchSizing() {
+  }
+
+  /**
+   * Get the batch size to use for the next classification.
+   *
+   * @param maximum the batch size set in the preferences
+   * @return a batch size between 1 and {@code maximum}
+   */
+  public static int adaptiveBatchSize(int maximum) {
+    long fitting = (long) (availableMemory() * MEMORY_FRACTION) / BYTES_PER_TILE;
+    return (int) Math.max(1, Math.min(Math.max(1, maximum), fitting));
+  }
+
+  /**
+   * Get the free physical memory, as the inference runs outside the Java heap.
+   * Falls back on the free heap if the system does not report it.
+   */
+  private static long availableMemory() {
+    try {
+      OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+      if (os instanceof com.sun.management.OperatingSystemMXBean sunOs) {
+        return sunOs.getFreeMemorySize();
+      }
+    } catch (LinkageError e) {
+      // The jdk.management module is not part of the runtime
+    }
+
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+  }
+}
@@ -0,0 +1,186 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Reader of tiles by blocks.
+ *
+ * <p>The tiles of a same row are grouped into horizontal strips, each strip is read from the
+ * server with a single request and the tiles are sliced out of it in memory. On a pyramidal
+ * image, the compressed tiles of the file shared by adjacent tiles are then decoded once
+ * instead of once per tile.
+ */
+public class BlockRegionReader {
+  private final ImageServer<BufferedImage> server;
+  private final double downsample;
+  private final int maxBlockWidth;
+  private final TileRasterPool rasterPool;
+
+  /**
+   * Constructor.
+   *
+   * @param server        the server used to read the tiles
+   * @param downsample    the downsample at which the tiles are read
+   * @param maxBlockWidth the maximum width of a strip, in pixels at the given downsample
+   */
+  public BlockRegionReader(ImageServer<BufferedImage> server, double downsample,
+                           int maxBlockWidth) {
+    this(server, downsample, maxBlockWidth, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param server        the server used to read the tiles
+   * @param downsample    the downsample at which the tiles are read
+   * @param maxBlockWidth the maximum width of a strip, in pixels at the given downsample
+   * @param rasterPool    the pool in which the tile images are taken, or null to allocate them
+   */
+  public BlockRegionReader(ImageServer<BufferedImage> server, double downsample,
+                           int maxBlockWidth, TileRasterPool rasterPool) {
+    this.server = server;
+    this.downsample = downsample;
+    this.maxBlockWidth = maxBlockWidth;
+    this.rasterPool = rasterPool;
+  }
+
+  /**
+   * Group the tiles into strips.
+   * Two tiles of a row stay in the same strip if the gap between them is not wider than a tile,
+   * so that a hole in the annotation does not make the strip read useless pixels.
+   *
+   * @param tiles the tiles to read
+   * @return the strips, covering all the tiles
+   */
+  public List<Block> plan(List<ROI> tiles) {
+    // Rows of tiles, identified by their vertical position and height
+    Map<Long, List<Integer>> rows = new LinkedHashMap<>();
+    for (int i = 0; i < tiles.size(); i++) {
+      ROI roi = tiles.get(i);
+      long row = ((long) roi.getBoundsY() << 32) | ((long) roi.getBoundsHeight() & 0xFFFFFFFFL);
+      rows.computeIfAbsent(row, k -> new ArrayList<>()).add(i);
+    }
+
+    double maxWidth = maxBlockWidth * downsample;
+    List<Block> blocks = new ArrayList<>();
+    for (List<Integer> row : rows.values()) {
+      row.sort(Comparator.comparingDouble(i -> tiles.get(i).getBoundsX()));
+
+      Block block = null;
+      for (int index : row) {
+        ROI roi = tiles.get(index);
+        if (block == null
+            || roi.getBoundsX() - block.maxX > roi.getBoundsWidth()
+            || roi.getBoundsX() + roi.getBoundsWidth() - block.minX > maxWidth) {
+          block = new Block(roi);
+          blocks.add(block);
+        }
+        block.add(index, roi);
+      }
+    }
+    return blocks;
+  }
+
+  /**
+   * Read a strip and slice its tiles.
+   *
+   * @param block the strip to read
+   * @param tiles the list of tiles given to {@link #plan(List)}
+   * @return the tiles of the strip, with their images
+   * @throws IOException if the region cannot be read
+   */
+  public List<TileRecord> read(Block block, List<ROI> tiles) throws IOException {
+    RegionRequest request = RegionRequest.createInstance(
+        server.getPath(),
+        downsample,
+        (int) block.minX,
+        (int) block.minY,
+        (int) Math.ceil(block.maxX - (int) block.minX),
+        (int) Math.ceil(block.maxY - (int) block.minY));
+    BufferedImage strip = server.readRegion(request);
+
+    List<TileRecord> records = new ArrayList<>(block.indices.size());
+    for (int index : block.indices) {
+      ROI roi = tiles.get(index);
+      records.add(new TileRecord(index, slice(strip, block, roi)));
+    }
+    return records;
+  }
+
+  /**
+   * Copy a tile out of the strip, so that the strip can be freed once all its tiles are sliced.
+   * The copy is made in a pooled image when a pool is given.
+   */
+  private BufferedImage slice(BufferedImage strip, Block block, ROI roi) {
+    int x = (int) Math.round(((int) roi.getBoundsX() - (int) block.minX) / downsample);
+    int y = (int) Math.round(((int) roi.getBoundsY() - (int) block.minY) / downsample);
+    x = Math.min(x, strip.getWidth() - 1);
+    y = Math.min(y, strip.getHeight() - 1);
+    int width = Math.min(Math.max(1, (int) Math.round((int) roi.getBoundsWidth() / downsample)),
+        strip.getWidth() - x);
+    int height = Math.min(Math.max(1, (int) Math.round((int) roi.getBoundsHeight() / downsample)),
+        strip.getHeight() - y);
+
+    BufferedImage sub = strip.getSubimage(x, y, width, height);
+    if (rasterPool != null) {
+      BufferedImage tile = rasterPool.acquire(strip, width, height);
+      sub.copyData(tile.getRaster());
+      return tile;
+    }
+    WritableRaster raster = sub.getRaster().createCompatibleWritableRaster(width, height);
+    sub.copyData(raster);
+    return new BufferedImage(strip.getColorModel(), raster, strip.isAlphaPremultiplied(), null);
+  }
+
+  /**
+   * Horizontal strip of tiles, read with a single request.
+   */
+  public static final class Block {
+    private final List<Integer> indices = new ArrayList<>();
+    private final double minX;
+    private final double minY;
+    private final double maxY;
+    private double maxX;
+
+    private Block(ROI first) {
+      this.minX = first.getBoundsX();
+      this.minY = first.getBoundsY();
+      this.maxY = first.getBoundsY() + first.getBoundsHeight();
+      this.maxX = minX;
+    }
+
+    private void add(int index, ROI roi) {
+      indices.add(index);
+      maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+    }
+
+    /**
+     * Get the number of tiles in the strip.
+     *
+     * @return the number of tiles
+     */
+    public int size() {
+      return indices.size();
+    }
+
+    /**
+     * Get the positions of the tiles of the strip in the list given to {@link #plan(List)}.
+     *
+     * @return the indices of the tiles
+     */
+    public List<Integer> getIndices() {
+      return Collections.unmodifiableList(indices);
+    }
+  }
+}
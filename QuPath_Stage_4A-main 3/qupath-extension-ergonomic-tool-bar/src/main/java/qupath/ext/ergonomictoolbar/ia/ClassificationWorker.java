@@ -0,0 +1,353 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.utils.FileUtils;
+
+/**
+ * Long-lived classification process.
+ *
+ * <p>Classification.exe is extracted from the JAR once per session and started in server mode,
+ * so the ResNet18 weights are loaded only once. Requests are exchanged line by line
+ * over stdin/stdout:
+ * <pre>
+ *   &lt;- READY TENSORS                 (TENSORS if the worker can read a {@link TensorRing})
+ *   -&gt; BATCH &lt;batch size&gt;          (only when it changes)
+ *   -&gt; CLASSIFY &lt;archive path&gt;
+ *   &lt;- t0.tif: 1
+ *   &lt;- ...
+ *   &lt;- ERROR &lt;message&gt;             (if the request failed, still followed by DONE)
+ *   &lt;- DONE
+ *   -&gt; TENSORS &lt;ring path&gt; &lt;input size&gt; &lt;offset&gt; &lt;count&gt;
+ *   &lt;- 0: 1
+ *   &lt;- ...
+ *   &lt;- DONE
+ * </pre>
+ * With TENSORS, the tiles are read from the memory-mapped file of the ring and the predictions
+ * are given by position in the region.
+ * The process is restarted if it dies, or if the model folder or the model file changed.
+ */
+public class ClassificationWorker {
+  private static final Logger logger = LoggerFactory.getLogger(ClassificationWorker.class);
+
+  private static final String EXECUTABLE_RESOURCE =
+      "/qupath/ext/ergonomictoolbar/controllers/python/Classification.exe";
+  private static final long STOP_TIMEOUT_SECONDS = 2;
+
+  // Input of the model in Classification.py, and number of batches in flight in the ring
+  private static final int INPUT_SIZE = 224;
+  private static final int RING_REGIONS = 4;
+
+  private static ClassificationWorker instance;
+
+  private volatile Process process;
+  private BufferedWriter input;
+  private BufferedReader output;
+  private Path executable;
+  private String modelDirectory;
+  private long modelTimestamp;
+  private int batchSize;
+  private boolean tensorsSupported;
+  private volatile TensorRing ring;
+  private boolean ringFailed;
+
+  private ClassificationWorker() {
+    // Do not leave the worker running once QuPath is closed
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      Process running = process;
+      if (running != null) {
+        running.destroyForcibly();
+      }
+      TensorRing mapped = ring;
+      if (mapped != null) {
+        mapped.close();
+      }
+    }));
+  }
+
+  /**
+   * Get the instance of the ClassificationWorker.
+   *
+   * @return the instance of the ClassificationWorker
+   */
+  public static synchronized ClassificationWorker getInstance() {
+    if (instance == null) {
+      instance = new ClassificationWorker();
+    }
+    return instance;
+  }
+
+  /**
+   * Classify all the tiles of an archive.
+   * The worker is started if needed, and restarted once if the request fails,
+   * in which case the predictions already given may be given again.
+   *
+   * @param archive        the ZIP file containing the tiles
+   * @param modelDirectory the folder containing "model.pth"
+   * @param batchSize      the number of tiles given together to the model
+   * @param listener       called with the entry name and the predicted class of each tile,
+   *                       as soon as the worker writes it
+   * @throws IOException if the worker cannot classify the archive
+   */
+  public synchronized void classify(File archive, String modelDirectory, int batchSize,
+                                    BiConsumer<String, String> listener) throws IOException {
+    send("CLASSIFY " + archive.getAbsolutePath(), modelDirectory, batchSize, listener);
+  }
+
+  /**
+   * Get the ring through which the tensors of the tiles can be given to the worker.
+   * The ring is created on the first call, with regions of {@code regionSize} tiles, and kept
+   * for the session.
+   *
+   * @param modelDirectory the folder containing "model.pth"
+   * @param regionSize     the number of tiles of a batch
+   * @return the ring, or null if the worker cannot read it or the ring cannot be created,
+   *         in which case the tiles must be given in archives
+   */
+  public synchronized TensorRing getTensorRing(String modelDirectory, int regionSize) {
+    try {
+      ensureStarted(modelDirectory);
+    } catch (IOException e) {
+      logger.warn("Classification worker failed to start", e);
+      return null;
+    }
+    if (!tensorsSupported || ringFailed) {
+      return null;
+    }
+
+    if (ring == null) {
+      try {
+        ring = TensorRing.create(TensorPreprocessor.imagenet(INPUT_SIZE), regionSize,
+            RING_REGIONS);
+      } catch (IOException e) {
+        // Not retried, the archives are used for the rest of the session
+        logger.warn("Unable to create the tensor ring, the tiles are sent in archives", e);
+        ringFailed = true;
+      }
+    }
+    return ring;
+  }
+
+  /**
+   * Classify the tiles of a region of the ring.
+   * The worker is started if needed, and restarted once if the request fails,
+   * in which case the predictions already given may be given again.
+   *
+   * @param ring           the ring given by {@link #getTensorRing}
+   * @param region         the region holding the tensors
+   * @param count          the number of tensors in the region
+   * @param modelDirectory the folder containing "model.pth"
+   * @param batchSize      the number of tiles given together to the model
+   * @param listener       called with the position in the region and the predicted class of
+   *                       each tile, as soon as the worker writes it
+   * @throws IOException if the worker cannot classify the tiles
+   */
+  public synchronized void classifyTensors(TensorRing ring, int region, int count,
+                                           String modelDirectory, int batchSize,
+                                           BiConsumer<String, String> listener)
+      throws IOException {
+    send("TENSORS " + ring.getPath() + " " + ring.getPreprocessor().getSize() + " "
+        + ring.getOffset(region) + " " + count, modelDirectory, batchSize, listener);
+  }
+
+  /**
+   * Send a request, restarting the worker once if it fails.
+   */
+  private void send(String command, String modelDirectory, int batchSize,
+                    BiConsumer<String, String> listener) throws IOException {
+    try {
+      ensureStarted(modelDirectory);
+      request(command, batchSize, listener);
+    } catch (RequestFailedException e) {
+      // The worker reported the error and is ready for the next request
+      throw e;
+    } catch (IOException e) {
+      // A canceled request must not start the worker again
+      if (Thread.currentThread().isInterrupted()) {
+        throw e;
+      }
+      logger.warn("Classification worker failed, restarting it", e);
+      stop();
+      ensureStarted(modelDirectory);
+      request(command, batchSize, listener);
+    }
+  }
+
+  /**
+   * Stop the worker. It will be started again by the next request.
+   */
+  public synchronized void stop() {
+    Process running = process;
+    if (running == null) {
+      return;
+    }
+    process = null;
+
+    try {
+      input.write("QUIT");
+      input.newLine();
+      input.flush();
+    } catch (IOException e) {
+      // The process is already gone
+    }
+
+    try {
+      if (!running.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        running.destroyForcibly();
+      }
+    } catch (InterruptedException e) {
+      running.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Kill the worker without waiting for the end of the request in progress, which fails.
+   * Unlike {@link #stop()}, this method does not wait for the request to complete.
+   */
+  public void cancel() {
+    Process running = process;
+    if (running != null) {
+      running.destroyForcibly();
+    }
+  }
+
+  /**
+   * Send one request to the worker and read the predictions until the end marker.
+   * An error reported by the worker is thrown once its end marker is read, so that the
+   * next request starts on its own output.
+   */
+  private void request(String command, int batchSize, BiConsumer<String, String> listener)
+      throws IOException {
+    if (batchSize != this.batchSize) {
+      input.write("BATCH " + batchSize);
+      input.newLine();
+      this.batchSize = batchSize;
+    }
+
+    input.write(command);
+    input.newLine();
+    input.flush();
+
+    String error = null;
+    String line;
+    while ((line = output.readLine()) != null) {
+      if (line.equals("DONE")) {
+        if (error != null) {
+          throw new RequestFailedException("Classification error: " + error);
+        }
+        return;
+      }
+      if (line.startsWith("ERROR")) {
+        error = line.substring("ERROR".length()).trim();
+        continue;
+      }
+
+      // Each prediction is written as "name: class", the name may contain colons
+      int separator = line.lastIndexOf(':');
+      if (separator > 0) {
+        listener.accept(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+      }
+    }
+    throw new IOException("Classification worker stopped unexpectedly");
+  }
+
+  /**
+   * Start the worker if it is not running or if the model changed since it was started.
+   */
+  private void ensureStarted(String modelDirectory) throws IOException {
+    long timestamp = new File(modelDirectory, "model.pth").lastModified();
+    Process running = process;
+
+    if (running != null && running.isAlive()
+        && modelDirectory.equals(this.modelDirectory) && timestamp == modelTimestamp) {
+      return;
+    }
+    stop();
+
+    ProcessBuilder pb = new ProcessBuilder(extractExecutable().toString(), "--serve",
+        modelDirectory);
+    // The archives are extracted in extracted_images, in the folder cleaned by the toolbar
+    pb.directory(FileUtils.FILE_PATH_SAVE.toFile());
+    pb.redirectError(ProcessBuilder.Redirect.appendTo(
+        FileUtils.FILE_PATH_SAVE.resolve("classification_worker.log").toFile()));
+
+    Process started = pb.start();
+    input = new BufferedWriter(
+        new OutputStreamWriter(started.getOutputStream(), StandardCharsets.UTF_8));
+    output = new BufferedReader(
+        new InputStreamReader(started.getInputStream(), StandardCharsets.UTF_8));
+
+    // Wait for the model to be loaded
+    String line;
+    while ((line = output.readLine()) != null && !line.startsWith("READY")) {
+      logger.debug("Classification worker: {}", line);
+    }
+    if (line == null) {
+      started.destroyForcibly();
+      throw new IOException("Classification worker failed to start");
+    }
+
+    process = started;
+    this.batchSize = 0;
+    // Older builds of the worker only read archives
+    this.tensorsSupported = line.contains("TENSORS");
+    this.modelDirectory = modelDirectory;
+    this.modelTimestamp = timestamp;
+    logger.info("Classification worker started with model {}", modelDirectory);
+  }
+
+  /**
+   * Extract Classification.exe from the JAR, once per session.
+   */
+  private Path extractExecutable() throws IOException {
+    if (executable != null && Files.exists(executable)) {
+      return executable;
+    }
+
+    URL scriptUrl = ClassificationWorker.class.getResource(EXECUTABLE_RESOURCE);
+    if (scriptUrl == null) {
+      throw new IOException("Python script not found in JAR");
+    }
+
+    Path target = FileUtils.FILE_PATH_SAVE.resolve("Classification.exe");
+    try (InputStream in = scriptUrl.openStream()) {
+      Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // The file may be locked by a worker started by another QuPath instance
+      if (!Files.exists(target)) {
+        throw e;
+      }
+      logger.warn("Unable to update {}, the existing file is used", target);
+    }
+
+    if (!target.toFile().setExecutable(true)) {
+      logger.debug("Unable to set executable permission on {}", target);
+    }
+    executable = target;
+    return executable;
+  }
+
+  /**
+   * Error reported by the worker for a request, after which it still answers.
+   */
+  private static final class RequestFailedException extends IOException {
+    private RequestFailedException(String message) {
+      super(message);
+    }
+  }
+}
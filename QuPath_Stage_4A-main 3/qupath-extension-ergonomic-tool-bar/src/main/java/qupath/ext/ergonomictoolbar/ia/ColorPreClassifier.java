@@ -0,0 +1,463 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.ExtensionExecutors;
+import qupath.ext.ergonomictoolbar.utils.FileUtils;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Cheap first stage in front of the model, labelling the tiles whose colours leave no doubt.
+ *
+ * <p>Each tile is described by a few colour and stain features: the mean and standard
+ * deviation of the optical density of each channel, and histograms of the hue, saturation and
+ * value. A multinomial logistic regression on these features is trained from the same
+ * "Viable", "Necrotic" and "Other" folders as the model. The features of the tiles to classify
+ * are computed on a single low-resolution thumbnail, like the {@link BackgroundFilter}, so a
+ * tile labelled here is never read at full resolution. The tiles whose probability is below the
+ * confidence threshold are left to the model.
+ *
+ * <p>An instance can be shared by several threads.
+ */
+public class ColorPreClassifier {
+  private static final Logger logger = LoggerFactory.getLogger(ColorPreClassifier.class);
+
+  /**
+   * Folders of the training tiles, in the order of the classes of the model.
+   */
+  public static final List<String> CLASS_FOLDERS = List.of(FileUtils.VIABLE_SUBDIRECTORY,
+      FileUtils.NECROTIC_SUBDIRECTORY, FileUtils.OTHER_SUBDIRECTORY);
+
+  /**
+   * Value of the tiles left to the model.
+   */
+  public static final int UNRESOLVED = -1;
+
+  /**
+   * Width in pixels of a tile in the thumbnail, the training tiles are shrunk to it.
+   */
+  public static final int THUMBNAIL_TILE_SIZE = 32;
+
+  private static final int HUE_BINS = 8;
+  private static final int SATURATION_BINS = 4;
+  private static final int VALUE_BINS = 4;
+  private static final int FEATURE_COUNT = 6 + HUE_BINS + SATURATION_BINS + VALUE_BINS;
+
+  // Pixels less saturated than this have no meaningful hue
+  private static final float MIN_CHROMATIC_SATURATION = 0.05f;
+
+  // The training time stays bounded whatever the size of the folders
+  private static final int MAX_IMAGES_PER_CLASS = 500;
+  private static final int ITERATIONS = 500;
+  private static final float LEARNING_RATE = 0.5f;
+  private static final float L2 = 1e-3f;
+
+  // Optical density of an 8-bit value, -log10((v + 1) / 256)
+  private static final float[] OPTICAL_DENSITY = new float[256];
+
+  static {
+    for (int v = 0; v < 256; v++) {
+      OPTICAL_DENSITY[v] = (float) -Math.log10((v + 1) / 256.0);
+    }
+  }
+
+  private final float[] mean;
+  private final float[] std;
+  private final float[][] weights;
+  private final float[] bias;
+  private final double trainingAccuracy;
+  private final AtomicInteger checkedCount = new AtomicInteger();
+  private final AtomicInteger fastPathCount = new AtomicInteger();
+
+  private ColorPreClassifier(float[] mean, float[] std, float[][] weights, float[] bias,
+                             double trainingAccuracy) {
+    this.mean = mean;
+    this.std = std;
+    this.weights = weights;
+    this.bias = bias;
+    this.trainingAccuracy = trainingAccuracy;
+  }
+
+  /**
+   * Train the classifier on the tiles of the model folder.
+   * The images are read on the io lane, at most {@value #MAX_IMAGES_PER_CLASS} per class.
+   *
+   * @param directory the folder containing the "Viable", "Necrotic" and "Other" folders
+   * @return the trained classifier
+   * @throws IOException          if a folder is missing or has no readable image
+   * @throws InterruptedException if the thread is interrupted
+   */
+  public static ColorPreClassifier train(File directory)
+      throws IOException, InterruptedException {
+    List<float[]> samples = new ArrayList<>();
+    List<Integer> labels = new ArrayList<>();
+    int[] classCounts = new int[CLASS_FOLDERS.size()];
+
+    for (int label = 0; label < CLASS_FOLDERS.size(); label++) {
+      File folder = new File(directory, CLASS_FOLDERS.get(label));
+      File[] files = folder.listFiles(File::isFile);
+      if (files == null) {
+        throw new IOException("Training folder not found: " + folder);
+      }
+      Arrays.sort(files);
+
+      // Evenly spread sample of the folder
+      int step = Math.max(1, (int) Math.ceil((double) files.length / MAX_IMAGES_PER_CLASS));
+      List<Future<float[]>> features = new ArrayList<>();
+      for (int i = 0; i < files.length; i += step) {
+        File file = files[i];
+        features.add(ExtensionExecutors.io().submit(() -> imageFeatures(file)));
+      }
+
+      try {
+        for (Future<float[]> feature : features) {
+          float[] sample = feature.get();
+          if (sample != null) {
+            samples.add(sample);
+            labels.add(label);
+            classCounts[label]++;
+          }
+        }
+      } catch (ExecutionException e) {
+        throw new IOException("Unable to read the training tiles of " + folder, e.getCause());
+      } finally {
+        for (Future<float[]> feature : features) {
+          feature.cancel(true);
+        }
+      }
+      if (classCounts[label] == 0) {
+        throw new IOException("No readable training tile in " + folder);
+      }
+    }
+
+    ColorPreClassifier classifier = fit(samples, labels, classCounts);
+    logger.info("Colour pre-classifier trained on {} tiles {}, training accuracy {}",
+        samples.size(), Arrays.toString(classCounts),
+        String.format("%.3f", classifier.trainingAccuracy));
+    return classifier;
+  }
+
+  /**
+   * Classify the tiles whose colours leave no doubt.
+   * Images that are not RGB are left to the model.
+   *
+   * @param server        the server of the image
+   * @param tiles         the tiles to classify
+   * @param minConfidence the minimum probability of the predicted class to label a tile
+   * @return the class of each tile, or {@link #UNRESOLVED} if it must be given to the model
+   * @throws IOException if the thumbnail cannot be read
+   */
+  public int[] classify(ImageServer<BufferedImage> server, List<ROI> tiles,
+                        double minConfidence) throws IOException {
+    int[] classes = new int[tiles.size()];
+    Arrays.fill(classes, UNRESOLVED);
+    if (tiles.isEmpty() || !server.isRGB()) {
+      return classes;
+    }
+
+    TileThumbnail thumbnail = TileThumbnail.read(server, tiles, THUMBNAIL_TILE_SIZE);
+    int resolved = 0;
+    for (int i = 0; i < tiles.size(); i++) {
+      int[] bounds = thumbnail.bounds(tiles.get(i));
+      float[] probabilities = predict(features(thumbnail.getPixels(), thumbnail.getWidth(),
+          bounds[0], bounds[1], bounds[2], bounds[3]));
+      int classification = TileClassifier.argmax(probabilities);
+      if (probabilities[classification] >= minConfidence) {
+        classes[i] = classification;
+        resolved++;
+      }
+    }
+
+    checkedCount.addAndGet(tiles.size());
+    fastPathCount.addAndGet(resolved);
+    return classes;
+  }
+
+  /**
+   * Get the probability of each class from the features of a tile.
+   *
+   * @param features the features of the tile
+   * @return the probabilities, in the order of {@link #CLASS_FOLDERS}
+   */
+  public float[] predict(float[] features) {
+    float[] standardized = new float[FEATURE_COUNT];
+    for (int f = 0; f < FEATURE_COUNT; f++) {
+      standardized[f] = (features[f] - mean[f]) / std[f];
+    }
+    float[] probabilities = new float[weights.length];
+    softmax(standardized, weights, bias, probabilities);
+    return probabilities;
+  }
+
+  /**
+   * Get the number of tiles given to {@link #classify} since this classifier was trained.
+   *
+   * @return the number of tiles checked
+   */
+  public int getCheckedCount() {
+    return checkedCount.get();
+  }
+
+  /**
+   * Get the number of tiles labelled without the model since this classifier was trained.
+   *
+   * @return the number of tiles that took the fast path
+   */
+  public int getFastPathCount() {
+    return fastPathCount.get();
+  }
+
+  /**
+   * Get the fraction of the training tiles given their own class.
+   *
+   * @return the training accuracy, between 0 and 1
+   */
+  public double getTrainingAccuracy() {
+    return trainingAccuracy;
+  }
+
+  /**
+   * Compute the features of a rectangle of packed RGB pixels.
+   *
+   * @param pixels the packed RGB pixels
+   * @param stride the number of pixels of a row
+   * @param x0     the first column
+   * @param y0     the first row
+   * @param x1     the column after the last one
+   * @param y1     the row after the last one
+   * @return the features, always of the same length
+   */
+  public static float[] features(int[] pixels, int stride, int x0, int y0, int x1, int y1) {
+    float[] features = new float[FEATURE_COUNT];
+    float[] sum = new float[3];
+    float[] sumSquares = new float[3];
+    int hueOffset = 6;
+    int saturationOffset = hueOffset + HUE_BINS;
+    int valueOffset = saturationOffset + SATURATION_BINS;
+
+    for (int y = y0; y < y1; y++) {
+      int offset = y * stride;
+      for (int x = x0; x < x1; x++) {
+        int rgb = pixels[offset + x];
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+
+        // Stains: optical density of each channel
+        float odR = OPTICAL_DENSITY[r];
+        float odG = OPTICAL_DENSITY[g];
+        float odB = OPTICAL_DENSITY[b];
+        sum[0] += odR;
+        sum[1] += odG;
+        sum[2] += odB;
+        sumSquares[0] += odR * odR;
+        sumSquares[1] += odG * odG;
+        sumSquares[2] += odB * odB;
+
+        // Colours: HSV histograms
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        float saturation = max == 0 ? 0 : (float) (max - min) / max;
+        features[saturationOffset + Math.min(SATURATION_BINS - 1,
+            (int) (saturation * SATURATION_BINS))]++;
+        features[valueOffset + Math.min(VALUE_BINS - 1, max * VALUE_BINS / 256)]++;
+        if (saturation >= MIN_CHROMATIC_SATURATION) {
+          features[hueOffset + Math.min(HUE_BINS - 1, (int) (hue(r, g, b, max, min) * HUE_BINS))]++;
+        }
+      }
+    }
+
+    float count = (float) (x1 - x0) * (y1 - y0);
+    for (int c = 0; c < 3; c++) {
+      float channelMean = sum[c] / count;
+      features[c] = channelMean;
+      features[3 + c] = (float) Math.sqrt(Math.max(0, sumSquares[c] / count
+          - channelMean * channelMean));
+    }
+    for (int f = hueOffset; f < FEATURE_COUNT; f++) {
+      features[f] /= count;
+    }
+    return features;
+  }
+
+  /**
+   * Hue of the HSV model, between 0 (included) and 1 (excluded).
+   */
+  private static float hue(int r, int g, int b, int max, int min) {
+    float delta = max - min;
+    float hue;
+    if (max == r) {
+      hue = (g - b) / delta;
+    } else if (max == g) {
+      hue = 2 + (b - r) / delta;
+    } else {
+      hue = 4 + (r - g) / delta;
+    }
+    hue /= 6;
+    return hue < 0 ? hue + 1 : Math.min(hue, Math.nextDown(1f));
+  }
+
+  /**
+   * Read a training tile and compute its features, once shrunk to the size of a tile in the
+   * thumbnail.
+   *
+   * @return the features, or null if the file is not an image
+   */
+  private static float[] imageFeatures(File file) throws IOException {
+    BufferedImage image = ImageIO.read(file);
+    if (image == null) {
+      return null;
+    }
+
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    int outWidth = Math.min(width, THUMBNAIL_TILE_SIZE);
+    int outHeight = Math.max(1, (int) Math.round((double) height * outWidth / width));
+    int[] shrunk = shrink(pixels, width, height, outWidth, outHeight);
+    return features(shrunk, outWidth, 0, 0, outWidth, outHeight);
+  }
+
+  /**
+   * Shrink packed RGB pixels by averaging the input pixels covered by each output pixel,
+   * as the lower levels of a pyramid are built.
+   */
+  private static int[] shrink(int[] pixels, int width, int height, int outWidth,
+                              int outHeight) {
+    int[] shrunk = new int[outWidth * outHeight];
+    for (int oy = 0; oy < outHeight; oy++) {
+      int y0 = oy * height / outHeight;
+      int y1 = Math.max(y0 + 1, (oy + 1) * height / outHeight);
+      for (int ox = 0; ox < outWidth; ox++) {
+        int x0 = ox * width / outWidth;
+        int x1 = Math.max(x0 + 1, (ox + 1) * width / outWidth);
+
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int y = y0; y < y1; y++) {
+          for (int x = x0; x < x1; x++) {
+            int rgb = pixels[y * width + x];
+            r += (rgb >> 16) & 0xFF;
+            g += (rgb >> 8) & 0xFF;
+            b += rgb & 0xFF;
+          }
+        }
+        long count = (long) (x1 - x0) * (y1 - y0);
+        shrunk[oy * outWidth + ox] =
+            (int) (r / count) << 16 | (int) (g / count) << 8 | (int) (b / count);
+      }
+    }
+    return shrunk;
+  }
+
+  /**
+   * Fit the regression by gradient descent on the standardized features, each class weighted
+   * by the inverse of its number of tiles so that a small class is not ignored.
+   */
+  private static ColorPreClassifier fit(List<float[]> samples, List<Integer> labels,
+                                        int[] classCounts) {
+    int n = samples.size();
+    int classes = classCounts.length;
+
+    float[] mean = new float[FEATURE_COUNT];
+    float[] std = new float[FEATURE_COUNT];
+    for (float[] sample : samples) {
+      for (int f = 0; f < FEATURE_COUNT; f++) {
+        mean[f] += sample[f] / n;
+      }
+    }
+    for (float[] sample : samples) {
+      for (int f = 0; f < FEATURE_COUNT; f++) {
+        std[f] += (sample[f] - mean[f]) * (sample[f] - mean[f]) / n;
+      }
+    }
+    for (int f = 0; f < FEATURE_COUNT; f++) {
+      // A constant feature is left at 0
+      std[f] = std[f] > 1e-12f ? (float) Math.sqrt(std[f]) : 1;
+    }
+
+    float[][] x = new float[n][FEATURE_COUNT];
+    for (int i = 0; i < n; i++) {
+      for (int f = 0; f < FEATURE_COUNT; f++) {
+        x[i][f] = (samples.get(i)[f] - mean[f]) / std[f];
+      }
+    }
+    float[] classWeights = new float[classes];
+    for (int c = 0; c < classes; c++) {
+      classWeights[c] = (float) n / (classes * classCounts[c]);
+    }
+
+    float[][] weights = new float[classes][FEATURE_COUNT];
+    float[] bias = new float[classes];
+    float[][] gradient = new float[classes][FEATURE_COUNT];
+    float[] biasGradient = new float[classes];
+    float[] probabilities = new float[classes];
+
+    for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+      for (float[] row : gradient) {
+        Arrays.fill(row, 0);
+      }
+      Arrays.fill(biasGradient, 0);
+
+      for (int i = 0; i < n; i++) {
+        int label = labels.get(i);
+        softmax(x[i], weights, bias, probabilities);
+        for (int c = 0; c < classes; c++) {
+          float error = (probabilities[c] - (c == label ? 1 : 0)) * classWeights[label];
+          for (int f = 0; f < FEATURE_COUNT; f++) {
+            gradient[c][f] += error * x[i][f];
+          }
+          biasGradient[c] += error;
+        }
+      }
+
+      for (int c = 0; c < classes; c++) {
+        for (int f = 0; f < FEATURE_COUNT; f++) {
+          weights[c][f] -= LEARNING_RATE * (gradient[c][f] / n + L2 * weights[c][f]);
+        }
+        bias[c] -= LEARNING_RATE * biasGradient[c] / n;
+      }
+    }
+
+    int correct = 0;
+    for (int i = 0; i < n; i++) {
+      softmax(x[i], weights, bias, probabilities);
+      if (TileClassifier.argmax(probabilities) == labels.get(i)) {
+        correct++;
+      }
+    }
+    return new ColorPreClassifier(mean, std, weights, bias, (double) correct / n);
+  }
+
+  private static void softmax(float[] x, float[][] weights, float[] bias, float[] target) {
+    float max = -Float.MAX_VALUE;
+    for (int c = 0; c < weights.length; c++) {
+      float z = bias[c];
+      for (int f = 0; f < x.length; f++) {
+        z += weights[c][f] * x[f];
+      }
+      target[c] = z;
+      max = Math.max(max, z);
+    }
+    float total = 0;
+    for (int c = 0; c < weights.length; c++) {
+      target[c] = (float) Math.exp(target[c] - max);
+      total += target[c];
+    }
+    for (int c = 0; c < weights.length; c++) {
+      target[c] /= total;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.application.Platform;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+
+/**
+ * Adds objects to a hierarchy in small batches on the JavaFX application thread.
+ * Objects added while a batch is waiting to be committed join that batch, so the hierarchy
+ * receives one event per batch instead of one per tile, and the viewer is never flooded.
+ *
+ * <p>The result of a tile added with its "Tumor Area" is attached directly below it, without
+ * the hierarchy looking for its parent. A commit then fires a single structure change event,
+ * with this batcher as source, so that the listeners of the extension can ignore it with
+ * {@link #isBatcherEvent(PathObjectHierarchyEvent)} and update once at the end of the run.
+ *
+ * <p>A batcher created with {@link #deferred(PathObjectHierarchy)} never schedules commits,
+ * for images that are not displayed: the objects are added by a single call to
+ * {@link #commit()}, which works without the JavaFX toolkit.
+ */
+public class HierarchyBatcher {
+  private final PathObjectHierarchy hierarchy;
+  private final boolean autoCommit;
+  private final List<PathObject[]> pending = new ArrayList<>();
+  private boolean scheduled;
+
+  /**
+   * Constructor.
+   *
+   * @param hierarchy the hierarchy that receives the objects
+   */
+  public HierarchyBatcher(PathObjectHierarchy hierarchy) {
+    this(hierarchy, true);
+  }
+
+  private HierarchyBatcher(PathObjectHierarchy hierarchy, boolean autoCommit) {
+    this.hierarchy = hierarchy;
+    this.autoCommit = autoCommit;
+  }
+
+  /**
+   * Create a batcher that keeps the objects until {@link #commit()} is called.
+   *
+   * @param hierarchy the hierarchy that receives the objects
+   * @return the batcher
+   */
+  public static HierarchyBatcher deferred(PathObjectHierarchy hierarchy) {
+    return new HierarchyBatcher(hierarchy, false);
+  }
+
+  /**
+   * Check whether a hierarchy event was fired by the commit of a batcher.
+   *
+   * @param event the event received by a listener
+   * @return true if the event comes from a batcher
+   */
+  public static boolean isBatcherEvent(PathObjectHierarchyEvent event) {
+    return event.getSource() instanceof HierarchyBatcher;
+  }
+
+  /**
+   * Queue the result of a tile. A commit is scheduled on the JavaFX application thread
+   * if none is already waiting.
+   *
+   * @param parent     the annotation from which the tile was created, already in the
+   *                   hierarchy, or null to let the hierarchy find the parent
+   * @param pathObject the object to add to the hierarchy
+   */
+  public synchronized void add(PathObject parent, PathObject pathObject) {
+    pending.add(new PathObject[] {parent, pathObject});
+    if (autoCommit && !scheduled) {
+      scheduled = true;
+      Platform.runLater(this::commit);
+    }
+  }
+
+  /**
+   * Add all the queued objects to the hierarchy at once.
+   * Must be called on the JavaFX application thread if the hierarchy is displayed.
+   */
+  public void commit() {
+    List<PathObject[]> batch;
+    synchronized (this) {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+      scheduled = false;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    Map<PathObject, List<PathObject>> children = new LinkedHashMap<>();
+    List<PathObject> withoutParent = new ArrayList<>();
+    for (PathObject[] entry : batch) {
+      if (entry[0] != null) {
+        children.computeIfAbsent(entry[0], k -> new ArrayList<>()).add(entry[1]);
+      } else {
+        withoutParent.add(entry[1]);
+      }
+    }
+
+    // Attached without event, a single one is fired once all the children are added
+    for (Map.Entry<PathObject, List<PathObject>> entry : children.entrySet()) {
+      entry.getKey().addChildObjects(entry.getValue());
+    }
+    if (children.size() == 1) {
+      hierarchy.fireHierarchyChangedEvent(this, children.keySet().iterator().next());
+    } else if (!children.isEmpty()) {
+      hierarchy.fireHierarchyChangedEvent(this);
+    }
+
+    if (!withoutParent.isEmpty()) {
+      hierarchy.addObjects(withoutParent);
+    }
+  }
+}
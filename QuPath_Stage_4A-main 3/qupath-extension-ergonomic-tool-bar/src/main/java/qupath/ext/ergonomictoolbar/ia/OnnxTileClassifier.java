@@ -0,0 +1,159 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ResNet18 classifier running on the CPU with ONNX Runtime.
+ *
+ * <p>The model is the "model.onnx" file exported by TrainingModel.py next to "model.pth".
+ * The tiles go through the same preprocessing as in Classification.py, made in Java by a
+ * {@link TensorPreprocessor}: resized to 224x224, scaled to [0, 1] and normalized with the
+ * ImageNet mean and standard deviation.
+ */
+public class OnnxTileClassifier implements TileClassifier {
+  private static final Logger logger = LoggerFactory.getLogger(OnnxTileClassifier.class);
+
+  /**
+   * Name of the exported model, in the model folder.
+   */
+  public static final String MODEL_FILE = "model.onnx";
+
+  private static final int INPUT_SIZE = 224;
+
+  private final OrtEnvironment environment;
+  private final OrtSession session;
+  private final String inputName;
+  private final TensorPreprocessor preprocessor = TensorPreprocessor.imagenet(INPUT_SIZE);
+
+  // Input buffer of each thread, reused between the batches
+  private final ThreadLocal<FloatBuffer> inputs = new ThreadLocal<>();
+  private final ThreadLocal<float[]> tensors =
+      ThreadLocal.withInitial(() -> new float[preprocessor.getTensorLength()]);
+
+  /**
+   * Load a model.
+   *
+   * @param modelFile      the ONNX file
+   * @param intraOpThreads the number of threads used by each operator
+   * @throws IOException if the model cannot be loaded
+   */
+  public OnnxTileClassifier(Path modelFile, int intraOpThreads) throws IOException {
+    environment = OrtEnvironment.getEnvironment();
+
+    try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+      // The batches are run one after the other, only the operators are parallel
+      options.setIntraOpNumThreads(Math.max(1, intraOpThreads));
+      options.setInterOpNumThreads(1);
+      options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+
+      session = environment.createSession(modelFile.toString(), options);
+      inputName = session.getInputNames().iterator().next();
+    } catch (OrtException e) {
+      throw new IOException("Unable to load the model " + modelFile, e);
+    }
+    logger.info("Model {} loaded with {} threads", modelFile, intraOpThreads);
+  }
+
+  @Override
+  public float[][] predict(List<BufferedImage> tiles) throws IOException {
+    long start = System.nanoTime();
+    int length = preprocessor.getTensorLength();
+    FloatBuffer input = inputBuffer(tiles.size());
+    float[] tensor = tensors.get();
+    for (int i = 0; i < tiles.size(); i++) {
+      preprocessor.toChw(tiles.get(i), tensor, 0);
+      input.put(i * length, tensor);
+    }
+    return run(input, tiles.size(), start);
+  }
+
+  @Override
+  public TensorPreprocessor getPreprocessor() {
+    return preprocessor;
+  }
+
+  @Override
+  public float[][] predictTensors(List<float[]> tiles) throws IOException {
+    long start = System.nanoTime();
+    int length = preprocessor.getTensorLength();
+    FloatBuffer input = inputBuffer(tiles.size());
+    for (int i = 0; i < tiles.size(); i++) {
+      input.put(i * length, tiles.get(i), 0, length);
+    }
+    return run(input, tiles.size(), start);
+  }
+
+  @Override
+  public void close() {
+    try {
+      session.close();
+    } catch (OrtException e) {
+      logger.warn("Unable to release the model", e);
+    }
+  }
+
+  /**
+   * Get the input buffer of the thread, holding at least a batch of tiles.
+   * It is direct and in native order, so that ONNX Runtime does not copy it.
+   */
+  private FloatBuffer inputBuffer(int tileCount) {
+    int length = tileCount * preprocessor.getTensorLength();
+    FloatBuffer input = inputs.get();
+    if (input == null || input.capacity() < length) {
+      input = ByteBuffer.allocateDirect(length * Float.BYTES)
+          .order(ByteOrder.nativeOrder())
+          .asFloatBuffer();
+      inputs.set(input);
+    }
+    input.clear().limit(length);
+    return input;
+  }
+
+  /**
+   * Run the model on a batch of converted tiles.
+   */
+  private float[][] run(FloatBuffer input, int tileCount, long start) throws IOException {
+    long[] shape = {tileCount, 3, INPUT_SIZE, INPUT_SIZE};
+    try (OnnxTensor tensor = OnnxTensor.createTensor(environment, input, shape);
+         OrtSession.Result result = session.run(Map.of(inputName, tensor))) {
+      float[][] logits = (float[][]) result.get(0).getValue();
+      for (float[] tileLogits : logits) {
+        softmax(tileLogits);
+      }
+
+      logger.debug("{} tiles classified in {} ms", tileCount,
+          (System.nanoTime() - start) / 1_000_000);
+      return logits;
+    } catch (OrtException e) {
+      throw new IOException("Error during the inference", e);
+    }
+  }
+
+  /**
+   * Turn the logits of the model into probabilities, in place.
+   */
+  private static void softmax(float[] values) {
+    float max = values[TileClassifier.argmax(values)];
+    float sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (float) Math.exp(values[i] - max);
+      sum += values[i];
+    }
+    for (int i = 0; i < values.length; i++) {
+      values[i] /= sum;
+    }
+  }
+}
@@ -0,0 +1,323 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * On-disk cache of the tile predictions.
+ *
+ * <p>There is one file per model and image, named after the hash of the model file and the
+ * hash of the path of the image server with the downsample at which the tiles are read.
+ * A prediction is identified in its file by the bounds of the tile. Each image only loads its
+ * own predictions, and retraining the model starts new caches, the files of the other models
+ * being deleted.
+ *
+ * <p>The file is a journal: new predictions are appended to it while the run progresses,
+ * by {@link #saveIfDue()}, and it is never rewritten. If QuPath or the classifier stops
+ * during a run, the next run on the image finds the tiles already classified and only
+ * classifies the others. An entry cut by a crash, or unreadable, is removed with everything
+ * after it when the file is opened. The appends and the removal hold a lock on the file, so
+ * two runs on the same image never mix their entries.
+ */
+public class PredictionCache {
+  private static final Logger logger = LoggerFactory.getLogger(PredictionCache.class);
+
+  private static final String FILE_PREFIX = "predictions_";
+  private static final String FILE_EXTENSION = ".bin";
+
+  // The journal is written when this many predictions are waiting, or after this delay
+  private static final int SAVE_ENTRIES = 256;
+  private static final long SAVE_INTERVAL_NANOS = 2_000_000_000L;
+
+  // Hash of the model files, computed once per version of the file
+  private static final Map<String, String> modelHashes = new ConcurrentHashMap<>();
+
+  // A file lock is held by the whole JVM, the caches of the same file wait on this monitor
+  private static final Map<Path, Object> fileMonitors = new ConcurrentHashMap<>();
+
+  private final Path file;
+  // Kept by tile bounds rather than by text, a project batch holds one such map per image
+  private final Map<TileKey, Byte> predictions = new ConcurrentHashMap<>();
+  private final Queue<TileKey> unsaved = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger unsavedCount = new AtomicInteger();
+  private volatile long lastSave = System.nanoTime();
+
+  private PredictionCache(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Open the cache of a model for an image.
+   *
+   * @param directory  the folder containing the cache files
+   * @param serverPath the path of the image server
+   * @param downsample the downsample at which the tiles are read
+   * @param modelFile  the model that makes the predictions
+   * @return the cache, with the predictions already saved for this model and image
+   * @throws IOException if the model cannot be hashed or the folder cannot be created
+   */
+  public static PredictionCache open(Path directory, String serverPath, double downsample,
+                                     File modelFile) throws IOException {
+    Files.createDirectories(directory);
+    String modelPrefix = FILE_PREFIX + hashModel(modelFile) + "_";
+    String fileName = modelPrefix + hash(serverPath + "@" + downsample) + FILE_EXTENSION;
+
+    // The predictions of the previous models are no longer valid
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_EXTENSION)) {
+      for (Path other : files) {
+        if (!other.getFileName().toString().startsWith(modelPrefix)) {
+          Files.deleteIfExists(other);
+          logger.info("Prediction cache {} deleted, the model changed", other);
+        }
+      }
+    }
+
+    PredictionCache cache = new PredictionCache(directory.resolve(fileName));
+    cache.load();
+    return cache;
+  }
+
+  /**
+   * Create a cache that is not saved, used when the cache file cannot be opened.
+   *
+   * @return an empty cache
+   */
+  public static PredictionCache inMemory() {
+    return new PredictionCache(null);
+  }
+
+  /**
+   * Get the prediction of a tile.
+   *
+   * @param tileRoi the ROI of the tile
+   * @return the predicted class, or null if the tile has never been classified by this model
+   */
+  public Integer get(ROI tileRoi) {
+    Byte classification = predictions.get(TileKey.of(tileRoi));
+    return classification == null ? null : (int) classification;
+  }
+
+  /**
+   * Record the prediction of a tile. It is written to the disk by {@link #save()}.
+   *
+   * @param tileRoi        the ROI of the tile
+   * @param classification the predicted class
+   */
+  public void put(ROI tileRoi, int classification) {
+    TileKey key = TileKey.of(tileRoi);
+    if (predictions.put(key, (byte) classification) == null) {
+      unsaved.add(key);
+      unsavedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Append the new predictions to the journal if enough of them are waiting,
+   * or if the last save is old enough. Called after each batch of predictions.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  public void saveIfDue() throws IOException {
+    if (unsavedCount.get() >= SAVE_ENTRIES
+        || (unsavedCount.get() > 0 && System.nanoTime() - lastSave > SAVE_INTERVAL_NANOS)) {
+      save();
+    }
+  }
+
+  /**
+   * Append the new predictions to the cache file.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  public synchronized void save() throws IOException {
+    lastSave = System.nanoTime();
+    if (file == null || unsaved.isEmpty()) {
+      return;
+    }
+
+    int count = 0;
+    synchronized (monitor()) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+           FileLock lock = channel.lock()) {
+        // Flushed before the lock is released, the entries are never written in two parts
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        TileKey key;
+        while ((key = unsaved.poll()) != null) {
+          out.writeUTF(key.toString());
+          out.writeByte(predictions.get(key));
+          unsavedCount.decrementAndGet();
+          count++;
+        }
+        out.flush();
+      }
+    }
+    logger.debug("{} predictions added to {}", count, file);
+  }
+
+  private void load() throws IOException {
+    if (Files.notExists(file)) {
+      return;
+    }
+
+    synchronized (monitor()) {
+      try (FileChannel channel =
+               FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+           FileLock lock = channel.lock()) {
+        // Length of the complete entries, the file is cut there if the next one is unreadable
+        long validLength = 0;
+        CountingInputStream counter = new CountingInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel)));
+        DataInputStream in = new DataInputStream(counter);
+        try {
+          while (true) {
+            TileKey key = TileKey.parse(in.readUTF());
+            predictions.put(key, in.readByte());
+            validLength = counter.count;
+          }
+        } catch (EOFException e) {
+          // End of the file, possibly after an entry cut by a crash
+        } catch (IOException e) {
+          logger.warn("Unreadable entry in the prediction journal {}", file, e);
+        }
+
+        long removed = channel.size() - validLength;
+        if (removed > 0) {
+          channel.truncate(validLength);
+          logger.info("{} bytes removed from the end of the prediction journal {}", removed,
+              file);
+        }
+      }
+    }
+    logger.debug("{} predictions read from {}", predictions.size(), file);
+  }
+
+  private Object monitor() {
+    return fileMonitors.computeIfAbsent(file.toAbsolutePath().normalize(), k -> new Object());
+  }
+
+  /**
+   * Bounds of a tile, written in the journal as "x,y,width,height".
+   */
+  private record TileKey(int x, int y, int width, int height) {
+    private static TileKey of(ROI tileRoi) {
+      return new TileKey((int) tileRoi.getBoundsX(), (int) tileRoi.getBoundsY(),
+          (int) tileRoi.getBoundsWidth(), (int) tileRoi.getBoundsHeight());
+    }
+
+    private static TileKey parse(String text) throws IOException {
+      String[] parts = text.split(",");
+      try {
+        if (parts.length == 4) {
+          return new TileKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+              Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        }
+      } catch (NumberFormatException e) {
+        // Reported below
+      }
+      throw new IOException("Invalid tile bounds: " + text);
+    }
+
+    @Override
+    public String toString() {
+      return x + "," + y + "," + width + "," + height;
+    }
+  }
+
+  /**
+   * Stream counting the bytes read, to find the end of the last complete entry.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    private CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Hash the model file, or reuse the hash if the file did not change since.
+   */
+  private static String hashModel(File modelFile) throws IOException {
+    String version = modelFile.getAbsolutePath() + "|" + modelFile.length() + "|"
+        + modelFile.lastModified();
+    String hash = modelHashes.get(version);
+    if (hash != null) {
+      return hash;
+    }
+
+    MessageDigest digest = sha256();
+    try (InputStream in =
+             new DigestInputStream(Files.newInputStream(modelFile.toPath()), digest)) {
+      in.transferTo(OutputStream.nullOutputStream());
+    }
+    hash = HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+
+    modelHashes.put(version, hash);
+    return hash;
+  }
+
+  /**
+   * Hash a text, such as the path of an image, into a short file name.
+   */
+  private static String hash(String text) throws IOException {
+    byte[] bytes = sha256().digest(text.getBytes(StandardCharsets.UTF_8));
+    return HexFormat.of().formatHex(bytes).substring(0, 16);
+  }
+
+  private static MessageDigest sha256() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 not available", e);
+    }
+  }
+}
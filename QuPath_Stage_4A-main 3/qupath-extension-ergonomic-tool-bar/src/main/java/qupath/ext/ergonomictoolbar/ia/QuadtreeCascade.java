@@ -0,0 +1,259 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.TileGrid;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Coarse-to-fine classification of the tiles of an image.
+ *
+ * <p>The tiles of each {@link TileGrid} are grouped into cells of 2<sup>levels</sup> x
+ * 2<sup>levels</sup> tiles, from their position in the grid. Each cell is read as a single
+ * image at low resolution and classified. If the prediction is confident and the neighbouring
+ * cells have the same class, all its tiles take that class. Otherwise the cell is split in 4
+ * and its quarters are classified in the same way at the next level. The neighbours of a cell
+ * are the cells of its level still unresolved and the blocks accepted at the coarser levels,
+ * so a cell next to a block of another class is always split.
+ * The tiles still unresolved at the last level are left to the usual full resolution
+ * classification, so the borders between classes keep their resolution while the large
+ * uniform regions, such as a necrotic core, are classified with a few inferences.
+ */
+public class QuadtreeCascade {
+  private static final Logger logger = LoggerFactory.getLogger(QuadtreeCascade.class);
+
+  /**
+   * Value of the tiles not resolved by the cascade.
+   */
+  public static final int UNRESOLVED = -1;
+
+  private final ImageServer<BufferedImage> server;
+  private final TileClassifier classifier;
+  private final int levels;
+  private final double minConfidence;
+  private final int batchSize;
+
+  private int avoidedCount;
+  private int inferenceCount;
+
+  /**
+   * Constructor.
+   *
+   * @param server        the server used to read the cells
+   * @param classifier    the classifier running in QuPath
+   * @param levels        the number of levels above the tiles, 2 starts with cells of 4x4 tiles
+   * @param minConfidence the minimum probability of the predicted class to accept a cell
+   * @param batchSize     the number of cells classified together
+   */
+  public QuadtreeCascade(ImageServer<BufferedImage> server, TileClassifier classifier,
+                         int levels, double minConfidence, int batchSize) {
+    this.server = server;
+    this.classifier = classifier;
+    this.levels = Math.max(1, levels);
+    this.minConfidence = minConfidence;
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Classify the tiles from the coarsest level to the finest.
+   *
+   * @param tiles the tiles of the image, with their grids
+   * @return the class of each tile, or {@link #UNRESOLVED} if it must be classified alone
+   * @throws IOException          if a cell cannot be read or classified
+   * @throws InterruptedException if the thread is interrupted
+   */
+  public int[] classify(TileGrid.Tiles tiles) throws IOException, InterruptedException {
+    int[] classes = new int[tiles.size()];
+    Arrays.fill(classes, UNRESOLVED);
+    if (tiles.isEmpty()) {
+      return classes;
+    }
+
+    // Position of each tile in its grid
+    TileGrid[] grids = new TileGrid[tiles.size()];
+    int[] gridX = new int[tiles.size()];
+    int[] gridY = new int[tiles.size()];
+    List<Integer> all = new ArrayList<>(tiles.size());
+    for (int i = 0; i < tiles.size(); i++) {
+      grids[i] = tiles.getGrid(i);
+      gridX[i] = grids[i].getColumn(tiles.getTile(i));
+      gridY[i] = grids[i].getRow(tiles.getTile(i));
+      all.add(i);
+    }
+
+    // Class of the cells accepted at each level, the neighbours of the finer cells
+    List<Map<Position, Integer>> accepted = new ArrayList<>();
+    for (int level = 0; level <= levels; level++) {
+      accepted.add(new HashMap<>());
+    }
+
+    Map<Position, Cell> cells = group(all, tiles, grids, gridX, gridY, levels);
+    for (int level = levels; level >= 1 && !cells.isEmpty(); level--) {
+      predict(cells.values());
+
+      List<Integer> uncertain = new ArrayList<>();
+      for (Cell cell : cells.values()) {
+        if (cell.confidence >= minConfidence
+            && agreesWithNeighbours(cell, level, cells, accepted)) {
+          for (int index : cell.indices) {
+            classes[index] = cell.classification;
+          }
+          accepted.get(level).put(cell.position, cell.classification);
+          avoidedCount += cell.indices.size();
+        } else {
+          uncertain.addAll(cell.indices);
+        }
+      }
+      logger.debug("Level {}: {} cells, {} tiles left", level, cells.size(), uncertain.size());
+
+      cells = level > 1 ? group(uncertain, tiles, grids, gridX, gridY, level - 1) : Map.of();
+    }
+    return classes;
+  }
+
+  /**
+   * Get the number of tiles that took the class of their cell, without being classified
+   * at full resolution.
+   *
+   * @return the number of avoided tiles
+   */
+  public int getAvoidedCount() {
+    return avoidedCount;
+  }
+
+  /**
+   * Get the number of cells classified at low resolution.
+   *
+   * @return the number of inferences made by the cascade
+   */
+  public int getInferenceCount() {
+    return inferenceCount;
+  }
+
+  private static Map<Position, Cell> group(List<Integer> indices, List<ROI> tiles,
+                                           TileGrid[] grids, int[] gridX, int[] gridY,
+                                           int level) {
+    Map<Position, Cell> cells = new LinkedHashMap<>();
+    for (int index : indices) {
+      Position position =
+          new Position(grids[index], gridX[index] >> level, gridY[index] >> level);
+      cells.computeIfAbsent(position, Cell::new).add(index, tiles.get(index));
+    }
+    return cells;
+  }
+
+  /**
+   * A cell is on a border between classes if a neighbouring cell of the same level, or a
+   * coarser block containing a neighbouring cell, was given another class.
+   */
+  private boolean agreesWithNeighbours(Cell cell, int level, Map<Position, Cell> cells,
+                                       List<Map<Position, Integer>> accepted) {
+    Position position = cell.position;
+    for (int dy = -1; dy <= 1; dy++) {
+      for (int dx = -1; dx <= 1; dx++) {
+        int x = position.x() + dx;
+        int y = position.y() + dy;
+        Cell neighbour = cells.get(new Position(position.grid(), x, y));
+        if (neighbour != null && neighbour.classification != cell.classification) {
+          return false;
+        }
+
+        for (int coarser = level + 1; coarser <= levels; coarser++) {
+          int shift = coarser - level;
+          Integer block =
+              accepted.get(coarser).get(new Position(position.grid(), x >> shift, y >> shift));
+          if (block != null && block != cell.classification) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private void predict(Collection<Cell> cells) throws IOException, InterruptedException {
+    List<Cell> batch = new ArrayList<>(batchSize);
+    List<BufferedImage> images = new ArrayList<>(batchSize);
+    for (Cell cell : cells) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException("Cascade interrupted");
+      }
+
+      batch.add(cell);
+      images.add(read(cell));
+      if (batch.size() == batchSize) {
+        predictBatch(batch, images);
+      }
+    }
+    if (!batch.isEmpty()) {
+      predictBatch(batch, images);
+    }
+  }
+
+  private void predictBatch(List<Cell> batch, List<BufferedImage> images) throws IOException {
+    float[][] probabilities = classifier.predict(images);
+    for (int i = 0; i < batch.size(); i++) {
+      Cell cell = batch.get(i);
+      cell.classification = TileClassifier.argmax(probabilities[i]);
+      cell.confidence = probabilities[i][cell.classification];
+    }
+    inferenceCount += batch.size();
+    batch.clear();
+    images.clear();
+  }
+
+  /**
+   * Read a cell at the coarsest pyramid level still giving the model its input size.
+   */
+  private BufferedImage read(Cell cell) throws IOException {
+    double width = cell.maxX - cell.minX;
+    double downsample = ReadResolution.select(server, width).getDownsample();
+    RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample,
+        (int) cell.minX, (int) cell.minY, (int) Math.ceil(width),
+        (int) Math.ceil(cell.maxY - cell.minY));
+    return server.readRegion(request);
+  }
+
+  /**
+   * Position of a cell in the grid of its tiles, at the level of the cell.
+   */
+  private record Position(TileGrid grid, int x, int y) {
+  }
+
+  /**
+   * Group of adjacent tiles, classified as a whole.
+   */
+  private static final class Cell {
+    private final Position position;
+    private final List<Integer> indices = new ArrayList<>();
+    private double minX = Double.MAX_VALUE;
+    private double minY = Double.MAX_VALUE;
+    private double maxX = -Double.MAX_VALUE;
+    private double maxY = -Double.MAX_VALUE;
+    private int classification = UNRESOLVED;
+    private double confidence;
+
+    private Cell(Position position) {
+      this.position = position;
+    }
+
+    private void add(int index, ROI roi) {
+      indices.add(index);
+      minX = Math.min(minX, roi.getBoundsX());
+      minY = Math.min(minY, roi.getBoundsY());
+      maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+      maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+    }
+  }
+}
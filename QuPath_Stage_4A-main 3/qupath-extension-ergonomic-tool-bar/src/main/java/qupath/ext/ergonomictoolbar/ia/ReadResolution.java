@@ -0,0 +1,209 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Locale;
+import qupath.ext.ergonomictoolbar.utils.FileUtils;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Resolution at which the tiles of an image are read.
+ *
+ * <p>The tiles of a new training set are read from the stored pyramid level with the largest
+ * downsample that still gives at least {@link #MODEL_INPUT_SIZE} pixels per tile. The server
+ * then returns the pixels of that level without resampling them, and the only resize left is
+ * the one to the model input, done by the classifier.
+ *
+ * <p>A model only gives sensible classes on tiles read at the downsample of its training tiles.
+ * This downsample is written in the model folder, in {@link #TRAINING_DOWNSAMPLE_FILE}, when the
+ * first training tile of the folder is exported, and the tiles to classify are read at it.
+ * A folder without this file holds tiles exported at {@link #LEGACY_DOWNSAMPLE}, before the
+ * pyramid levels were used.
+ */
+public final class ReadResolution {
+  /**
+   * Width in pixels of the images given to the model.
+   */
+  public static final int MODEL_INPUT_SIZE = 224;
+
+  /**
+   * Downsample at which all the tiles were read before the pyramid levels were used.
+   */
+  public static final double LEGACY_DOWNSAMPLE = 20;
+
+  /**
+   * File of the model folder holding the downsample of its training tiles.
+   */
+  public static final String TRAINING_DOWNSAMPLE_FILE = "training_downsample.txt";
+
+  // Tolerance on the downsamples, which are rarely exact powers of 2
+  private static final double TOLERANCE = 1e-3;
+
+  private final int level;
+  private final double downsample;
+  private final double tileWidth;
+
+  private ReadResolution(int level, double downsample, double tileWidth) {
+    this.level = level;
+    this.downsample = downsample;
+    this.tileWidth = tileWidth;
+  }
+
+  /**
+   * Choose the pyramid level from which tiles of a given width are read.
+   *
+   * @param server    the server of the image
+   * @param tileWidth the width of a tile, in pixels at full resolution
+   * @return the selected resolution
+   */
+  public static ReadResolution select(ImageServer<BufferedImage> server, double tileWidth) {
+    int level = levelFor(server, tileWidth / MODEL_INPUT_SIZE);
+    return new ReadResolution(level, server.getDownsampleForResolution(level), tileWidth);
+  }
+
+  /**
+   * Read tiles at a fixed downsample, from the pyramid level closest to it without being
+   * coarser. The server resamples the level when the downsample is not stored.
+   *
+   * @param server     the server of the image
+   * @param downsample the downsample at which the tiles are read
+   * @param tileWidth  the width of a tile, in pixels at full resolution
+   * @return the resolution
+   */
+  public static ReadResolution at(ImageServer<BufferedImage> server, double downsample,
+                                  double tileWidth) {
+    return new ReadResolution(levelFor(server, downsample), downsample, tileWidth);
+  }
+
+  /**
+   * Choose the resolution at which training tiles are exported into a model folder.
+   * The downsample already written in the folder is kept. A folder without training tiles
+   * yet records the pyramid level selected for this tile, and a folder holding tiles
+   * exported before keeps {@link #LEGACY_DOWNSAMPLE}.
+   *
+   * @param server      the server of the image
+   * @param tileWidth   the width of the tile, in pixels at full resolution
+   * @param modelFolder the folder of the model, containing the training folders
+   * @return the resolution of the training tiles of the folder
+   * @throws IOException if the downsample cannot be written
+   */
+  public static ReadResolution forTraining(ImageServer<BufferedImage> server, double tileWidth,
+                                           File modelFolder) throws IOException {
+    double trained = readTrainingDownsample(modelFolder);
+    if (!Double.isNaN(trained)) {
+      return at(server, trained, tileWidth);
+    }
+    if (hasTrainingTiles(modelFolder)) {
+      return at(server, LEGACY_DOWNSAMPLE, tileWidth);
+    }
+
+    ReadResolution resolution = select(server, tileWidth);
+    Files.writeString(new File(modelFolder, TRAINING_DOWNSAMPLE_FILE).toPath(),
+        String.format(Locale.ROOT, "%s%n", resolution.downsample), StandardCharsets.UTF_8);
+    return resolution;
+  }
+
+  /**
+   * Get the downsample of the training tiles of a model.
+   *
+   * @param modelFolder the folder of the model
+   * @return the downsample, or NaN if the folder does not give it or it cannot be read
+   */
+  public static double readTrainingDownsample(File modelFolder) {
+    Path file = new File(modelFolder, TRAINING_DOWNSAMPLE_FILE).toPath();
+    if (Files.notExists(file)) {
+      return Double.NaN;
+    }
+    try {
+      double downsample = Double.parseDouble(Files.readString(file, StandardCharsets.UTF_8).trim());
+      return downsample >= 1 ? downsample : Double.NaN;
+    } catch (IOException | NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Check whether tiles have already been exported into the training folders of a model.
+   */
+  private static boolean hasTrainingTiles(File modelFolder) {
+    for (String folder : new String[] {FileUtils.VIABLE_SUBDIRECTORY,
+        FileUtils.NECROTIC_SUBDIRECTORY, FileUtils.OTHER_SUBDIRECTORY}) {
+      File[] files = new File(modelFolder, folder).listFiles(File::isFile);
+      if (files != null && files.length > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the coarsest pyramid level whose downsample is not above a target.
+   */
+  private static int levelFor(ImageServer<BufferedImage> server, double target) {
+    int best = 0;
+    for (int level = 1; level < server.nResolutions(); level++) {
+      double downsample = server.getDownsampleForResolution(level);
+      if (downsample <= target * (1 + TOLERANCE)
+          && downsample > server.getDownsampleForResolution(best)) {
+        best = level;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Get the pyramid level.
+   *
+   * @return the level read, 0 being the full resolution
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Get the downsample to use in the region requests.
+   *
+   * @return the downsample
+   */
+  public double getDownsample() {
+    return downsample;
+  }
+
+  /**
+   * Append a line describing this choice to the CSV report of the read levels.
+   * The decoded fraction compares the pixels decoded for a tile with a read at full resolution.
+   *
+   * @param reportFile the CSV file, created with its header if needed
+   * @param imageName  the name of the image
+   * @param tileCount  the number of tiles read
+   * @throws IOException if the report cannot be written
+   */
+  public void appendToReport(Path reportFile, String imageName, int tileCount)
+      throws IOException {
+    boolean newFile = Files.notExists(reportFile);
+    try (BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      if (newFile) {
+        writer.write("date;image;level;downsample;tiles;tile width;read width;decoded fraction");
+        writer.newLine();
+      }
+      writer.write(String.format(Locale.ROOT, "%s;%s;%d;%.3f;%d;%d;%d;%.4f",
+          LocalDateTime.now().withNano(0), imageName, level, downsample, tileCount,
+          Math.round(tileWidth), Math.round(tileWidth / downsample),
+          1 / (downsample * downsample)));
+      writer.newLine();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "level %d (downsample %.2f)", level, downsample);
+  }
+}
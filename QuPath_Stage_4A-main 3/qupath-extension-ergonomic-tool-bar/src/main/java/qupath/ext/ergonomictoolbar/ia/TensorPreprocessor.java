@@ -0,0 +1,268 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conversion of a tile to the input of the model: a square of {@code size} pixels, in
+ * channels first order (the red plane, then the green plane, then the blue plane), with each
+ * channel scaled to [0, 1] and normalized with a mean and a standard deviation.
+ *
+ * <p>The tile is resized with the bilinear filter of PIL, which is what torchvision uses on
+ * the images opened by Classification.py: when the tile is shrunk, each output pixel is the
+ * weighted mean of all the input pixels it covers. The resize is separable, a horizontal pass
+ * reads the packed RGB pixels straight from the raster and a vertical pass accumulates whole
+ * rows, and the normalization is fused into the last write.
+ *
+ * <p>An instance can be shared by several threads.
+ */
+public final class TensorPreprocessor {
+  /**
+   * Mean of the ImageNet images, used to train the model.
+   */
+  public static final float[] IMAGENET_MEAN = {0.485f, 0.456f, 0.406f};
+
+  /**
+   * Standard deviation of the ImageNet images, used to train the model.
+   */
+  public static final float[] IMAGENET_STD = {0.229f, 0.224f, 0.225f};
+
+  private final int size;
+  private final float[] scale = new float[3];
+  private final float[] bias = new float[3];
+  private final Map<Integer, Kernel> kernels = new ConcurrentHashMap<>();
+  private final ThreadLocal<Scratch> scratch;
+
+  /**
+   * Constructor.
+   *
+   * @param size the width and height of the model input
+   * @param mean the mean of each channel, between 0 and 1
+   * @param std  the standard deviation of each channel
+   */
+  public TensorPreprocessor(int size, float[] mean, float[] std) {
+    this.size = size;
+    for (int c = 0; c < 3; c++) {
+      // (value / 255 - mean) / std, as a single multiply-add
+      scale[c] = 1f / (255f * std[c]);
+      bias[c] = -mean[c] / std[c];
+    }
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(size));
+  }
+
+  /**
+   * Create a preprocessor with the ImageNet normalization, as in Classification.py.
+   *
+   * @param size the width and height of the model input
+   * @return a new preprocessor
+   */
+  public static TensorPreprocessor imagenet(int size) {
+    return new TensorPreprocessor(size, IMAGENET_MEAN, IMAGENET_STD);
+  }
+
+  /**
+   * Get the width and height of the model input.
+   *
+   * @return the size in pixels
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Get the number of values of a tile once converted.
+   *
+   * @return 3 x size x size
+   */
+  public int getTensorLength() {
+    return 3 * size * size;
+  }
+
+  /**
+   * Convert a tile.
+   *
+   * @param tile   the decoded tile, in RGB
+   * @param target the array receiving the values
+   * @param offset the position of the first value in the array
+   */
+  public void toChw(BufferedImage tile, float[] target, int offset) {
+    int width = tile.getWidth();
+    int height = tile.getHeight();
+    Kernel horizontal = kernels.computeIfAbsent(width, in -> new Kernel(in, size));
+    Kernel vertical = kernels.computeIfAbsent(height, in -> new Kernel(in, size));
+
+    Scratch s = scratch.get();
+    s.ensureRows(height);
+    resizeRows(tile, horizontal, s);
+    resizeColumns(vertical, s, target, offset);
+  }
+
+  /**
+   * Horizontal pass: each row of the tile becomes a row of {@code size} values per channel.
+   */
+  private void resizeRows(BufferedImage tile, Kernel kernel, Scratch s) {
+    int width = tile.getWidth();
+    int height = tile.getHeight();
+    Raster raster = tile.getRaster();
+
+    // The packed RGB pixels are read in place when the raster stores them as such
+    int[] data = null;
+    int base = 0;
+    int stride = 0;
+    if (raster.getDataBuffer() instanceof DataBufferInt buffer
+        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel model
+        && isPackedRgb(model.getBitMasks())) {
+      data = buffer.getData();
+      stride = model.getScanlineStride();
+      base = buffer.getOffset() + model.getOffset(-raster.getSampleModelTranslateX(),
+          -raster.getSampleModelTranslateY());
+    }
+
+    int[] row = data != null ? data : s.row(width);
+    for (int y = 0; y < height; y++) {
+      int rowOffset;
+      if (data != null) {
+        rowOffset = base + y * stride;
+      } else {
+        // Other layouts are converted to packed RGB one row at a time
+        tile.getRGB(0, y, width, 1, row, 0, width);
+        rowOffset = 0;
+      }
+
+      int out = y * size;
+      for (int x = 0; x < size; x++) {
+        int start = rowOffset + kernel.start[x];
+        int weightOffset = x * kernel.taps;
+        float r = 0;
+        float g = 0;
+        float b = 0;
+        for (int k = 0; k < kernel.count[x]; k++) {
+          int rgb = row[start + k];
+          float weight = kernel.weights[weightOffset + k];
+          r += weight * ((rgb >> 16) & 0xFF);
+          g += weight * ((rgb >> 8) & 0xFF);
+          b += weight * (rgb & 0xFF);
+        }
+        s.red[out + x] = r;
+        s.green[out + x] = g;
+        s.blue[out + x] = b;
+      }
+    }
+  }
+
+  /**
+   * Vertical pass: the rows of the horizontal pass are accumulated into the output rows,
+   * then normalized into the target.
+   */
+  private void resizeColumns(Kernel kernel, Scratch s, float[] target, int offset) {
+    float[] accumulator = s.accumulator;
+    float[][] planes = {s.red, s.green, s.blue};
+    int planeSize = size * size;
+
+    for (int c = 0; c < 3; c++) {
+      float[] plane = planes[c];
+      float channelScale = scale[c];
+      float channelBias = bias[c];
+      int planeOffset = offset + c * planeSize;
+
+      for (int y = 0; y < size; y++) {
+        Arrays.fill(accumulator, 0f);
+        int weightOffset = y * kernel.taps;
+        for (int k = 0; k < kernel.count[y]; k++) {
+          float weight = kernel.weights[weightOffset + k];
+          int rowOffset = (kernel.start[y] + k) * size;
+          for (int x = 0; x < size; x++) {
+            accumulator[x] += weight * plane[rowOffset + x];
+          }
+        }
+
+        int out = planeOffset + y * size;
+        for (int x = 0; x < size; x++) {
+          target[out + x] = accumulator[x] * channelScale + channelBias;
+        }
+      }
+    }
+  }
+
+  private static boolean isPackedRgb(int[] masks) {
+    return masks.length >= 3 && masks[0] == 0xFF0000 && masks[1] == 0xFF00 && masks[2] == 0xFF;
+  }
+
+  /**
+   * Weights of the bilinear filter of PIL, from an input length to the output length.
+   * Output pixel {@code i} is the sum over {@code k < count[i]} of
+   * {@code weights[i * taps + k] * input[start[i] + k]}.
+   */
+  private static final class Kernel {
+    private final int[] start;
+    private final int[] count;
+    private final float[] weights;
+    private final int taps;
+
+    private Kernel(int in, int out) {
+      double scale = (double) in / out;
+      // When shrinking, the filter is widened to cover all the input pixels
+      double filterScale = Math.max(scale, 1);
+      double support = filterScale;
+      taps = (int) Math.ceil(support) * 2 + 1;
+
+      start = new int[out];
+      count = new int[out];
+      weights = new float[out * taps];
+      for (int i = 0; i < out; i++) {
+        double center = (i + 0.5) * scale;
+        int min = Math.max(0, (int) (center - support + 0.5));
+        int max = Math.min(in, (int) (center + support + 0.5));
+        start[i] = min;
+        count[i] = Math.min(max - min, taps);
+
+        double total = 0;
+        for (int k = 0; k < count[i]; k++) {
+          double weight = Math.max(0, 1 - Math.abs((min + k - center + 0.5) / filterScale));
+          weights[i * taps + k] = (float) weight;
+          total += weight;
+        }
+        for (int k = 0; k < count[i] && total > 0; k++) {
+          weights[i * taps + k] /= (float) total;
+        }
+      }
+    }
+  }
+
+  /**
+   * Buffers of a thread, grown to the largest tile seen.
+   */
+  private static final class Scratch {
+    private final int size;
+    private final float[] accumulator;
+    private float[] red = new float[0];
+    private float[] green = new float[0];
+    private float[] blue = new float[0];
+    private int[] row = new int[0];
+
+    private Scratch(int size) {
+      this.size = size;
+      this.accumulator = new float[size];
+    }
+
+    private void ensureRows(int height) {
+      if (red.length < height * size) {
+        red = new float[height * size];
+        green = new float[height * size];
+        blue = new float[height * size];
+      }
+    }
+
+    private int[] row(int width) {
+      if (row.length < width) {
+        row = new int[width];
+      }
+      return row;
+    }
+  }
+}
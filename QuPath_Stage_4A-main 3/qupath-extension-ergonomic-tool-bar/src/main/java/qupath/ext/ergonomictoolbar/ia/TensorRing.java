@@ -0,0 +1,178 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory-mapped file through which the tensors of the tiles are handed to the classification
+ * worker, instead of TIFF files in an archive.
+ *
+ * <p>The file is split into regions of {@code regionSize} tensors, in float32 little endian and
+ * channels first order. A batch of tiles is converted into a free region, then only the offset
+ * of the region and the number of tiles are sent to the worker, which maps the same file and
+ * gives the region to the model without copying it. The region is released once the worker has
+ * answered, so that the next batches can be converted while the previous ones are classified.
+ *
+ * <p>The file is created in /dev/shm when it exists, so that it stays in memory.
+ * An instance can be shared by several threads.
+ */
+public final class TensorRing implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(TensorRing.class);
+
+  private static final Path SHARED_MEMORY = Path.of("/dev/shm");
+
+  private final Path path;
+  private final TensorPreprocessor preprocessor;
+  private final int regionSize;
+  private final boolean[] busy;
+  private final FloatBuffer tensors;
+  private boolean closed;
+
+  private TensorRing(Path path, TensorPreprocessor preprocessor, int regionSize, int regions,
+                     FloatBuffer tensors) {
+    this.path = path;
+    this.preprocessor = preprocessor;
+    this.regionSize = regionSize;
+    this.busy = new boolean[regions];
+    this.tensors = tensors;
+  }
+
+  /**
+   * Create the file and map it.
+   *
+   * @param preprocessor converts the tiles to tensors
+   * @param regionSize   the number of tensors of a region, the largest batch
+   * @param regions      the number of batches that can be in flight
+   * @return a new ring
+   * @throws IOException if the file cannot be created or mapped
+   */
+  public static TensorRing create(TensorPreprocessor preprocessor, int regionSize, int regions)
+      throws IOException {
+    regionSize = Math.max(1, regionSize);
+    regions = Math.max(1, regions);
+    long bytes = (long) regions * regionSize * preprocessor.getTensorLength() * Float.BYTES;
+    // A float buffer is indexed by an int
+    if (bytes / Float.BYTES > Integer.MAX_VALUE) {
+      throw new IOException("Tensor ring of " + bytes + " bytes is too large");
+    }
+
+    Path path = Files.isDirectory(SHARED_MEMORY) && Files.isWritable(SHARED_MEMORY)
+        ? Files.createTempFile(SHARED_MEMORY, "ergonomic_tensors_", ".bin")
+        : Files.createTempFile("ergonomic_tensors_", ".bin");
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // The mapping stays valid once the channel is closed
+      FloatBuffer tensors = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes)
+          .order(ByteOrder.LITTLE_ENDIAN)
+          .asFloatBuffer();
+      logger.info("Tensor ring of {} x {} tiles mapped in {}", regions, regionSize, path);
+      return new TensorRing(path, preprocessor, regionSize, regions, tensors);
+    } catch (IOException e) {
+      Files.deleteIfExists(path);
+      throw e;
+    }
+  }
+
+  /**
+   * Get the file shared with the worker.
+   *
+   * @return the path of the file
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Get the preprocessor whose tensors are written in the ring.
+   *
+   * @return the preprocessor
+   */
+  public TensorPreprocessor getPreprocessor() {
+    return preprocessor;
+  }
+
+  /**
+   * Get the number of tensors of a region.
+   *
+   * @return the largest batch that can be written at once
+   */
+  public int getRegionSize() {
+    return regionSize;
+  }
+
+  /**
+   * Get the position of a region in the file.
+   *
+   * @param region the region
+   * @return the offset in bytes
+   */
+  public long getOffset(int region) {
+    return (long) region * regionSize * preprocessor.getTensorLength() * Float.BYTES;
+  }
+
+  /**
+   * Take a free region, waiting for one to be released if needed.
+   *
+   * @return the region
+   * @throws InterruptedException if the thread is interrupted while waiting
+   * @throws IOException          if the ring is closed
+   */
+  public synchronized int acquire() throws InterruptedException, IOException {
+    while (!closed) {
+      for (int region = 0; region < busy.length; region++) {
+        if (!busy[region]) {
+          busy[region] = true;
+          return region;
+        }
+      }
+      wait();
+    }
+    throw new IOException("Tensor ring closed");
+  }
+
+  /**
+   * Give back a region once the worker has answered.
+   *
+   * @param region the region
+   */
+  public synchronized void release(int region) {
+    busy[region] = false;
+    notifyAll();
+  }
+
+  /**
+   * Copy a tensor into a region. The region must have been acquired by the caller.
+   *
+   * @param region   the region
+   * @param position the position of the tensor in the region
+   * @param tensor   the tensor, as written by the preprocessor
+   */
+  public void write(int region, int position, float[] tensor) {
+    int length = preprocessor.getTensorLength();
+    // Absolute puts, the threads writing other regions do not interfere
+    tensors.put((region * regionSize + position) * length, tensor, 0, length);
+  }
+
+  /**
+   * Delete the file. The memory is given back once the mapping is collected.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      logger.debug("Unable to delete {}", path, e);
+    }
+  }
+}
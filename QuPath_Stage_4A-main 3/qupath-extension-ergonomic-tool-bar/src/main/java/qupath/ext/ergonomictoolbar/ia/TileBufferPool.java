@@ -0,0 +1,79 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Pool of in-memory buffers used to encode the tiles.
+ * Buffers are given back to the pool once their content has been written to the archive,
+ * so in steady state the encoders reuse the same arrays instead of allocating new ones.
+ */
+public class TileBufferPool {
+  private final BlockingQueue<Buffer> buffers;
+  private final int initialSize;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity    maximum number of buffers kept in the pool
+   * @param initialSize initial size in bytes of a new buffer
+   */
+  public TileBufferPool(int capacity, int initialSize) {
+    this.buffers = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    this.initialSize = initialSize;
+  }
+
+  /**
+   * Take an empty buffer from the pool, or create one if the pool is empty.
+   *
+   * @return an empty buffer
+   */
+  public Buffer acquire() {
+    Buffer buffer = buffers.poll();
+    return buffer != null ? buffer : new Buffer(initialSize);
+  }
+
+  /**
+   * Give a buffer back to the pool.
+   * The buffer is dropped if the pool is already full.
+   *
+   * @param buffer the buffer that is no longer used
+   */
+  public void release(Buffer buffer) {
+    if (buffer != null) {
+      buffer.reset();
+      buffers.offer(buffer);
+    }
+  }
+
+  /**
+   * Growable byte buffer that exposes its content without copying it.
+   */
+  public static class Buffer extends ByteArrayOutputStream {
+    private Buffer(int size) {
+      super(size);
+    }
+
+    /**
+     * Get the internal array. Only the first {@link #size()} bytes are meaningful.
+     *
+     * @return the internal array
+     */
+    public byte[] array() {
+      return buf;
+    }
+
+    /**
+     * Compute the CRC-32 of the content, as required by uncompressed ZIP entries.
+     *
+     * @return the checksum of the content
+     */
+    public long crc32() {
+      CRC32 crc = new CRC32();
+      crc.update(buf, 0, count);
+      return crc.getValue();
+    }
+  }
+}
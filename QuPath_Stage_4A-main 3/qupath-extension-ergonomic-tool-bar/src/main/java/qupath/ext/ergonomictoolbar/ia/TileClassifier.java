@@ -0,0 +1,94 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Classifier running in the JVM, predicting the class of decoded tiles.
+ * The classes are those of the trained model: 0 = Viable, 1 = Necrotic, 2 = Other.
+ */
+public interface TileClassifier extends AutoCloseable {
+  /**
+   * Predict the probability of each class for a batch of tiles.
+   *
+   * @param tiles the images of the tiles
+   * @return for each tile, in the same order, the probabilities of the classes
+   * @throws IOException if the inference fails
+   */
+  float[][] predict(List<BufferedImage> tiles) throws IOException;
+
+  /**
+   * Predict the class of a batch of tiles.
+   *
+   * @param tiles the images of the tiles
+   * @return the predicted class of each tile, in the same order
+   * @throws IOException if the inference fails
+   */
+  default int[] classify(List<BufferedImage> tiles) throws IOException {
+    return argmax(predict(tiles));
+  }
+
+  /**
+   * Get the conversion of the tiles expected by {@link #predictTensors(List)}, so that it can
+   * be made before the inference, in parallel.
+   *
+   * @return the preprocessing of the model, or null if the classifier only takes images
+   */
+  default TensorPreprocessor getPreprocessor() {
+    return null;
+  }
+
+  /**
+   * Predict the probability of each class for a batch of tiles already converted by
+   * {@link #getPreprocessor()}.
+   *
+   * @param tensors the converted tiles
+   * @return for each tile, in the same order, the probabilities of the classes
+   * @throws IOException if the inference fails
+   */
+  default float[][] predictTensors(List<float[]> tensors) throws IOException {
+    throw new UnsupportedOperationException("This classifier only takes images");
+  }
+
+  /**
+   * Predict the class of a batch of tiles already converted by {@link #getPreprocessor()}.
+   *
+   * @param tensors the converted tiles
+   * @return the predicted class of each tile, in the same order
+   * @throws IOException if the inference fails
+   */
+  default int[] classifyTensors(List<float[]> tensors) throws IOException {
+    return argmax(predictTensors(tensors));
+  }
+
+  /**
+   * Get the index of the largest value.
+   *
+   * @param values the probabilities of the classes
+   * @return the most probable class
+   */
+  static int argmax(float[] values) {
+    int best = 0;
+    for (int i = 1; i < values.length; i++) {
+      if (values[i] > values[best]) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  private static int[] argmax(float[][] probabilities) {
+    int[] classes = new int[probabilities.length];
+    for (int i = 0; i < probabilities.length; i++) {
+      classes[i] = argmax(probabilities[i]);
+    }
+    return classes;
+  }
+
+  /**
+   * Release the resources held by the model.
+   */
+  @Override
+  void close();
+}
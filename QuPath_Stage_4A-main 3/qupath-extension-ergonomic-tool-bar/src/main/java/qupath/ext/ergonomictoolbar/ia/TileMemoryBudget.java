@@ -0,0 +1,149 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import qupath.ext.ergonomictoolbar.ExtensionManagement;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Number of bytes of decoded tiles that may be held at once, shared by all the pipelines.
+ *
+ * <p>A pipeline reserves the size of the tiles before reading them and releases it once they
+ * are encoded or classified. The size of a tile is that of its raster, or of its tensor when
+ * it waits for the model as a tensor. When the budget is exhausted, the next reads wait for another
+ * pipeline to release its tiles, so the heap is never filled with tile rasters.
+ * A reservation is always granted when nothing is reserved by another pipeline, so that a
+ * tile larger than the whole budget can still be read.
+ */
+public final class TileMemoryBudget {
+  private static final TileMemoryBudget SHARED = new TileMemoryBudget(-1);
+
+  private final long limit;
+  private long used;
+
+  /**
+   * Constructor.
+   *
+   * @param limit the number of bytes available, or -1 to follow the "Tile memory budget"
+   *              preference
+   */
+  public TileMemoryBudget(long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Get the budget shared by all the pipelines of the extension.
+   *
+   * @return the shared budget
+   */
+  public static TileMemoryBudget shared() {
+    return SHARED;
+  }
+
+  /**
+   * Get the size of a decoded tile.
+   *
+   * @param server     the server from which the tile is read
+   * @param roi        the region of the tile, in full resolution pixels
+   * @param downsample the downsample at which the tile is read
+   * @return the size of the tile raster in bytes
+   */
+  public static long tileBytes(ImageServer<BufferedImage> server, ROI roi, double downsample) {
+    long width = Math.max(1, Math.round(roi.getBoundsWidth() / downsample));
+    long height = Math.max(1, Math.round(roi.getBoundsHeight() / downsample));
+    // RGB pixels are packed in a single int
+    long bytesPerPixel = server.isRGB()
+        ? 4 : (long) server.nChannels() * server.getPixelType().getBytesPerPixel();
+    return width * height * bytesPerPixel;
+  }
+
+  /**
+   * Get the size of a tile converted to the input of a model.
+   *
+   * @param preprocessor the conversion of the model
+   * @return the size of the tensor in bytes
+   */
+  public static long tensorBytes(TensorPreprocessor preprocessor) {
+    return (long) preprocessor.getTensorLength() * Float.BYTES;
+  }
+
+  /**
+   * Reserve bytes if they are available, without waiting.
+   *
+   * @param bytes the number of bytes to reserve
+   * @return true if the bytes are reserved
+   */
+  public synchronized boolean tryReserve(long bytes) {
+    if (used > 0 && used + bytes > getLimit()) {
+      return false;
+    }
+    used += bytes;
+    return true;
+  }
+
+  /**
+   * Reserve bytes if they are available, without waiting.
+   * The bytes already held by the caller do not count against it, so a caller alone in the
+   * budget always gets them.
+   *
+   * @param bytes the number of bytes to reserve
+   * @param held  the number of bytes already reserved by the caller
+   * @return true if the bytes are reserved
+   */
+  public synchronized boolean tryReserve(long bytes, long held) {
+    if (used - held > 0 && used + bytes > getLimit()) {
+      return false;
+    }
+    used += bytes;
+    return true;
+  }
+
+  /**
+   * Reserve bytes, waiting until they are released by another pipeline if needed.
+   * The bytes already held by the caller are not waited for, since it cannot release them
+   * before getting these ones. A caller that can give back what it holds should do so instead
+   * of waiting, see {@link #tryReserve(long, long)}: two pipelines each waiting with part of
+   * the budget would wait for each other forever.
+   *
+   * @param bytes the number of bytes to reserve
+   * @param held  the number of bytes already reserved by the caller
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public synchronized void reserve(long bytes, long held) throws InterruptedException {
+    while (used - held > 0 && used + bytes > getLimit()) {
+      wait();
+    }
+    used += bytes;
+  }
+
+  /**
+   * Give back bytes reserved before.
+   *
+   * @param bytes the number of bytes to release
+   */
+  public synchronized void release(long bytes) {
+    used = Math.max(0, used - bytes);
+    notifyAll();
+  }
+
+  /**
+   * Get the number of bytes reserved.
+   *
+   * @return the bytes currently held by the pipelines
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Get the number of bytes available in total.
+   *
+   * @return the limit of the budget
+   */
+  public long getLimit() {
+    if (limit >= 0) {
+      return limit;
+    }
+    return Math.max(1, ExtensionManagement.tileMemoryBudgetProperty().getValue()) * 1024L * 1024L;
+  }
+}
@@ -0,0 +1,792 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.ergonomictoolbar.ExtensionExecutors;
+import qupath.ext.ergonomictoolbar.Ia;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Staged pipeline that turns tiles into ZIP archives for the classifier.
+ *
+ * <p>The work is split in three stages:
+ * <ol>
+ *   <li>the regions are read from the image server on the io lane of
+ *   {@link ExtensionExecutors},</li>
+ *   <li>the images are encoded into TIFF bytes on the cpu lane,</li>
+ *   <li>the calling thread appends the bytes to the current archive.</li>
+ * </ol>
+ * Every {@code batchSize} tiles the archive is closed and handed to a listener,
+ * so the classification of the first batch can start while the next tiles are still read.
+ * The lanes are shared with the other runs, a pipeline only limits how many of its tiles
+ * are read and encoded at once.
+ *
+ * <p>The readers can group the tiles of a row into strips read with a single request,
+ * see {@link BlockRegionReader}.
+ *
+ * <p>When the classifier runs in the JVM, {@link #runDecoded} hands batches of decoded images
+ * to the listener, or of tiles already converted to the input of the model when a
+ * {@link TensorPreprocessor} is set: the conversion then runs on the cpu lane while the
+ * previous batch is classified.
+ *
+ * <p>The decoded tiles held at once are limited by a {@link TileMemoryBudget} shared by all the
+ * pipelines: the reads stop when it is exhausted, until tiles are encoded or classified.
+ * A tile converted to a tensor reserves the larger of its raster and its tensor.
+ * The tiles sliced from the strips are copied in pooled images, given back once used.
+ *
+ * <p>Tiles are encoded in pooled in-memory buffers and copied straight into the archive,
+ * no temporary file is created. Entries can be stored uncompressed, since deflating
+ * TIFF bytes costs CPU for little gain.
+ */
+public class TilePipeline {
+  private static final Logger logger = LoggerFactory.getLogger(TilePipeline.class);
+
+  // Delay after which the calling thread waiting for a tile checks for a failure
+  private static final long POLL_INTERVAL_MS = 200;
+
+  // A batch of decoded tiles being built holds at most this fraction of the memory budget
+  private static final int MAX_BATCH_SHARE = 4;
+
+  private final ImageServer<BufferedImage> server;
+  private final double downsample;
+  private final int readerThreads;
+  private final int encoderThreads;
+  private final int queueCapacity;
+  private final int batchSize;
+  private final File outputDirectory;
+  private final boolean storeUncompressed;
+  private final TileBufferPool bufferPool;
+  private final TileRasterPool rasterPool;
+  private final TensorPreprocessor preprocessor;
+  private final Queue<float[]> tensorPool = new ConcurrentLinkedQueue<>();
+  private final TileMemoryBudget memoryBudget;
+  private final BlockRegionReader blockReader;
+
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  private TilePipeline(Builder builder) {
+    this.server = builder.server;
+    this.downsample = builder.downsample;
+    this.readerThreads = builder.readerThreads;
+    this.encoderThreads = builder.encoderThreads;
+    this.queueCapacity = builder.queueCapacity;
+    this.batchSize = builder.batchSize;
+    this.outputDirectory = builder.outputDirectory;
+    this.storeUncompressed = builder.storeUncompressed;
+    this.memoryBudget = builder.memoryBudget;
+    this.preprocessor = builder.preprocessor;
+    // Enough buffers and images for a full queue plus the tiles being encoded and written
+    this.bufferPool = new TileBufferPool(queueCapacity + encoderThreads + 1, 64 * 1024);
+    this.rasterPool = new TileRasterPool(queueCapacity + encoderThreads + 1);
+    this.blockReader = builder.maxBlockWidth > 0
+        ? new BlockRegionReader(server, downsample, builder.maxBlockWidth, rasterPool)
+        : null;
+  }
+
+  /**
+   * Create a new builder for a pipeline reading from a server.
+   *
+   * @param server     the server used to read the tiles
+   * @param downsample the downsample at which the tiles are read
+   * @return a new builder
+   */
+  public static Builder builder(ImageServer<BufferedImage> server, double downsample) {
+    return new Builder(server, downsample);
+  }
+
+  /**
+   * Get the name of a tile inside a batch archive.
+   * The name only depends on the position of the tile, so it is unique for a run.
+   *
+   * @param index position of the tile in the list given to the pipeline
+   * @return the entry name
+   */
+  public static String entryName(int index) {
+    return "t" + index + ".tif";
+  }
+
+  /**
+   * Get the position of a tile from its name inside a batch archive.
+   *
+   * @param entryName the entry name, as given by {@link #entryName(int)}
+   * @return the index of the tile, or -1 if the name does not match
+   */
+  public static int entryIndex(String entryName) {
+    if (!entryName.startsWith("t") || !entryName.endsWith(".tif")) {
+      return -1;
+    }
+
+    try {
+      return Integer.parseInt(entryName.substring(1, entryName.length() - ".tif".length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Read, encode and archive all the tiles.
+   * This method blocks until the last archive has been handed to the listener.
+   *
+   * @param tiles         the tiles to process
+   * @param batchListener called from the calling thread each time an archive is complete
+   * @throws IOException          if a tile cannot be read or an archive cannot be written
+   * @throws InterruptedException if the calling thread is interrupted
+   */
+  public void run(List<ROI> tiles, Consumer<File> batchListener)
+      throws IOException, InterruptedException {
+    Run run = new Run(tiles, true);
+    try {
+      run.fill();
+      writeArchives(run, tiles.size(), batchListener);
+    } finally {
+      run.cancel();
+    }
+  }
+
+  /**
+   * Read all the tiles and hand them to a listener in batches of decoded images,
+   * for a classifier running in the JVM. No encoder nor archive is involved.
+   * The listener is called on the calling thread, in the order in which the tiles are read.
+   * The images and tensors are given back to the pools when it returns, so it must not keep
+   * them.
+   *
+   * <p>A batch holds at most a quarter of the memory budget, and an incomplete batch is handed
+   * over early when the next read would have to wait for another pipeline, so that the runs
+   * sharing the budget never wait for each other while holding tiles.
+   *
+   * @param tiles         the tiles to process
+   * @param batchListener called with at most {@code batchSize} tiles at a time
+   * @throws IOException          if a tile cannot be read
+   * @throws InterruptedException if the calling thread is interrupted
+   */
+  public void runDecoded(List<ROI> tiles, Consumer<List<TileRecord>> batchListener)
+      throws IOException, InterruptedException {
+    Run run = new Run(tiles, false);
+    try {
+      run.fill();
+
+      int maxBatchSize = run.maxBatchSize();
+      List<TileRecord> batch = new ArrayList<>(maxBatchSize);
+      Runnable handOver = () -> {
+        batchListener.accept(List.copyOf(batch));
+        for (TileRecord tile : batch) {
+          run.release(tile);
+        }
+        batch.clear();
+      };
+      for (int received = 1; received <= tiles.size(); received++) {
+        batch.add(run.take(handOver));
+        if (batch.size() == maxBatchSize || received == tiles.size()) {
+          handOver.run();
+        }
+      }
+    } finally {
+      run.cancel();
+    }
+  }
+
+  /**
+   * Write the encoded tiles into successive archives of {@code batchSize} entries.
+   */
+  private void writeArchives(Run run, int tileCount, Consumer<File> batchListener)
+      throws IOException, InterruptedException {
+    int entries = 0;
+    File archive = null;
+    ZipOutputStream zos = null;
+    Files.createDirectories(outputDirectory.toPath());
+
+    try {
+      for (int written = 0; written < tileCount; written++) {
+        TileRecord tile = run.take(null);
+        if (zos == null) {
+          // Unique name, several pipelines may write in the same folder
+          archive = Files.createTempFile(outputDirectory.toPath(), "batch_images_", ".zip")
+              .toFile();
+          zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        }
+
+        TileBufferPool.Buffer encoded = tile.getEncoded();
+        ZipEntry entry = new ZipEntry(tile.getEntryName());
+        if (storeUncompressed) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(encoded.size());
+          entry.setCompressedSize(encoded.size());
+          entry.setCrc(encoded.crc32());
+        }
+        zos.putNextEntry(entry);
+        encoded.writeTo(zos);
+        zos.closeEntry();
+        bufferPool.release(encoded);
+        entries++;
+
+        if (entries == batchSize) {
+          zos.close();
+          zos = null;
+          entries = 0;
+          batchListener.accept(archive);
+        }
+      }
+
+      // Hand over the last, incomplete, archive
+      if (zos != null) {
+        zos.close();
+        zos = null;
+        batchListener.accept(archive);
+      }
+    } finally {
+      // An archive still open is incomplete and never handed over
+      if (zos != null) {
+        zos.close();
+        Files.deleteIfExists(archive.toPath());
+      }
+    }
+  }
+
+  /**
+   * Encode a tile as TIFF in a pooled buffer.
+   * The image stream is cached in memory, so that ImageIO does not create a temporary file.
+   */
+  private TileBufferPool.Buffer encode(ImageWriter imageWriter, TileRecord tile)
+      throws IOException {
+    TileBufferPool.Buffer buffer = bufferPool.acquire();
+    try (ImageOutputStream ios = new MemoryCacheImageOutputStream(buffer)) {
+      imageWriter.setOutput(ios);
+      imageWriter.write(new IIOImage(tile.getImage(), null, null));
+    } catch (IOException e) {
+      bufferPool.release(buffer);
+      throw e;
+    } finally {
+      imageWriter.setOutput(null);
+    }
+    return buffer;
+  }
+
+  /**
+   * Create a TIFF writer. A writer is not thread safe, so each encoder owns one.
+   */
+  private static ImageWriter createTiffWriter() throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("TIFF");
+    if (!writers.hasNext()) {
+      throw new IOException("No TIFF writer available");
+    }
+    return writers.next();
+  }
+
+  /**
+   * Record the first failure, the calling thread stops the run when it notices it.
+   */
+  private void abort(Throwable cause) {
+    if (failure.compareAndSet(null, cause)) {
+      logger.error("Tile pipeline stopped", cause);
+    }
+  }
+
+  private void rethrowFailure() throws IOException, InterruptedException {
+    Throwable cause = failure.get();
+    if (cause == null) {
+      return;
+    }
+    if (cause instanceof IOException ioException) {
+      throw ioException;
+    }
+    if (cause instanceof InterruptedException interruptedException) {
+      throw interruptedException;
+    }
+    throw new IOException("Error while processing the tiles", cause);
+  }
+
+  /**
+   * Tiles of a run, read and encoded by short tasks on the shared lanes of
+   * {@link ExtensionExecutors}. A task never waits for another one: at most
+   * {@code readerThreads} reads and {@code encoderThreads} conversions of the run are submitted
+   * at once, and no read is submitted while {@code queueCapacity} tiles wait to be taken or
+   * while the memory budget is exhausted.
+   * All the fields are guarded by the run.
+   */
+  private final class Run {
+    private final List<ROI> tiles;
+    private final List<BlockRegionReader.Block> blocks;
+    private final boolean encoded;
+    private final boolean converted;
+    private final BlockingQueue<TileRecord> ready = new LinkedBlockingQueue<>();
+    private final Queue<TileRecord> toConvert = new ArrayDeque<>();
+    private final Queue<ImageWriter> imageWriters = new ConcurrentLinkedQueue<>();
+    private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+    private final long[] tileBytes;
+    private int nextRead;
+    private int reading;
+    private int converting;
+    private int pending;
+    private long reserved;
+    private boolean canceled;
+
+    private Run(List<ROI> tiles, boolean encoded) {
+      this.tiles = tiles;
+      this.encoded = encoded;
+      this.converted = encoded || preprocessor != null;
+      this.blocks = blockReader != null ? blockReader.plan(tiles) : null;
+      if (blocks != null) {
+        logger.debug("{} tiles read in {} strips", tiles.size(), blocks.size());
+      }
+
+      // A tile converted for the model is held as its tensor until it is classified,
+      // about 3 times the size of an RGB raster of the input size
+      long tensorBytes = !encoded && preprocessor != null
+          ? TileMemoryBudget.tensorBytes(preprocessor) : 0;
+      tileBytes = new long[tiles.size()];
+      for (int i = 0; i < tiles.size(); i++) {
+        tileBytes[i] = Math.max(tensorBytes,
+            TileMemoryBudget.tileBytes(server, tiles.get(i), downsample));
+      }
+    }
+
+    /**
+     * Submit reads until the limits of the run are reached.
+     */
+    private synchronized void fill() {
+      while (!canceled && failure.get() == null && nextRead < readCount()
+          && reading < readerThreads && pending < queueCapacity) {
+        long bytes = readBytes(nextRead);
+        if (!memoryBudget.tryReserve(bytes)) {
+          return;
+        }
+        startRead(bytes);
+      }
+    }
+
+    /**
+     * Get the number of tiles in a batch of decoded tiles, so that it holds at most its share
+     * of the memory budget.
+     */
+    private int maxBatchSize() {
+      long largestTile = 1;
+      for (long bytes : tileBytes) {
+        largestTile = Math.max(largestTile, bytes);
+      }
+      long batchBytes = memoryBudget.getLimit() / MAX_BATCH_SHARE;
+      return (int) Math.max(1, Math.min(batchSize, batchBytes / largestTile));
+    }
+
+    /**
+     * Take the next tile read, or encoded, waiting for it if needed.
+     *
+     * @param handOver gives back the tiles taken and not yet released, or null when they are
+     *                 all released before the next tile is taken
+     */
+    private TileRecord take(Runnable handOver) throws IOException, InterruptedException {
+      TileRecord tile = null;
+      while (tile == null) {
+        if (!awaitBudget(handOver != null)) {
+          // Give back the incomplete batch rather than wait for the other pipelines with it
+          handOver.run();
+          continue;
+        }
+        // Poll, so that a failure is noticed even if no tile arrives
+        tile = ready.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (tile == null) {
+          rethrowFailure();
+        }
+      }
+
+      synchronized (this) {
+        pending--;
+        fill();
+      }
+      return tile;
+    }
+
+    /**
+     * Give back the memory of a tile, and its image to the pool.
+     */
+    private void release(TileRecord tile) {
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        reserved -= tileBytes[tile.getIndex()];
+      }
+      memoryBudget.release(tileBytes[tile.getIndex()]);
+      recycleImage(tile);
+      if (tile.getTensor() != null) {
+        tensorPool.offer(tile.getTensor());
+        tile.clearTensor();
+      }
+    }
+
+    /**
+     * Give the image of a tile back to the pool, when it was taken from it.
+     */
+    private void recycleImage(TileRecord tile) {
+      if (blockReader != null) {
+        rasterPool.release(tile.getImage());
+      }
+      tile.clearImage();
+    }
+
+    /**
+     * When the run has no tile left in flight because the budget is exhausted, block the
+     * calling thread until the next read fits in the budget.
+     * A caller holding the tiles of an incomplete batch is not blocked: false is returned
+     * so that it releases them first, otherwise two runs each holding part of the budget
+     * would wait for each other.
+     *
+     * @param canHandOver whether the caller can release the tiles it holds
+     * @return false if the caller must release its tiles before the next read
+     */
+    private boolean awaitBudget(boolean canHandOver) throws InterruptedException {
+      long bytes;
+      long held;
+      synchronized (this) {
+        if (canceled || pending > 0 || nextRead >= readCount()) {
+          return true;
+        }
+        bytes = readBytes(nextRead);
+        // The tiles of the batch being built stay reserved until it is handed over
+        held = reserved;
+      }
+
+      // No task of the run is running, only the calling thread starts reads
+      if (canHandOver && held > 0) {
+        if (!memoryBudget.tryReserve(bytes, held)) {
+          return false;
+        }
+      } else {
+        memoryBudget.reserve(bytes, held);
+      }
+      synchronized (this) {
+        if (canceled) {
+          memoryBudget.release(bytes);
+        } else {
+          startRead(bytes);
+        }
+      }
+      return true;
+    }
+
+    private int readCount() {
+      return blocks != null ? blocks.size() : tiles.size();
+    }
+
+    /**
+     * Get the memory of the tiles of a read.
+     */
+    private long readBytes(int index) {
+      if (blocks == null) {
+        return tileBytes[index];
+      }
+      long bytes = 0;
+      for (int tileIndex : blocks.get(index).getIndices()) {
+        bytes += tileBytes[tileIndex];
+      }
+      return bytes;
+    }
+
+    private void startRead(long bytes) {
+      int index = nextRead++;
+      reading++;
+      pending += blocks != null ? blocks.get(index).size() : 1;
+      reserved += bytes;
+      submit(ExtensionExecutors.io(), () -> read(index));
+    }
+
+    /**
+     * Stop the tasks still running, once the tiles are all taken or the run failed.
+     */
+    private void cancel() {
+      long unreleased;
+      synchronized (this) {
+        canceled = true;
+        unreleased = reserved;
+        reserved = 0;
+      }
+      memoryBudget.release(unreleased);
+      for (Future<?> task : tasks) {
+        task.cancel(true);
+      }
+      ImageWriter imageWriter;
+      while ((imageWriter = imageWriters.poll()) != null) {
+        imageWriter.dispose();
+      }
+    }
+
+    /**
+     * Read a strip, or a single tile when the reads are not grouped.
+     */
+    private void read(int index) throws IOException {
+      List<TileRecord> records;
+      if (blocks != null) {
+        records = blockReader.read(blocks.get(index), tiles);
+      } else {
+        records = List.of(new TileRecord(index,
+            Ia.createImageWithRequest(server, tiles.get(index), downsample)));
+      }
+
+      synchronized (this) {
+        reading--;
+        if (converted) {
+          toConvert.addAll(records);
+          while (!canceled && converting < encoderThreads && converting < toConvert.size()) {
+            converting++;
+            submit(ExtensionExecutors.cpu(), this::convertQueued);
+          }
+        } else {
+          ready.addAll(records);
+        }
+        fill();
+      }
+    }
+
+    /**
+     * Encode, or convert to tensors, the tiles waiting for it, until none is left.
+     */
+    private void convertQueued() throws IOException {
+      // A writer is not thread safe, each encoding task takes its own
+      ImageWriter imageWriter = null;
+      if (encoded) {
+        imageWriter = imageWriters.poll();
+        if (imageWriter == null) {
+          imageWriter = createTiffWriter();
+        }
+      }
+
+      try {
+        while (true) {
+          TileRecord tile;
+          synchronized (this) {
+            tile = toConvert.poll();
+            if (tile == null) {
+              converting--;
+              return;
+            }
+          }
+
+          if (encoded) {
+            tile.setEncoded(encode(imageWriter, tile));
+            // Only the encoded bytes are written, the decoded image is no longer needed
+            release(tile);
+          } else {
+            tile.setTensor(toTensor(tile));
+            // The memory of the tile stays reserved for its tensor until it is classified
+            recycleImage(tile);
+          }
+          ready.add(tile);
+        }
+      } finally {
+        if (imageWriter != null) {
+          imageWriters.add(imageWriter);
+        }
+      }
+    }
+
+    /**
+     * Convert a tile to the input of the model, in a pooled array.
+     */
+    private float[] toTensor(TileRecord tile) {
+      float[] tensor = tensorPool.poll();
+      if (tensor == null) {
+        tensor = new float[preprocessor.getTensorLength()];
+      }
+      preprocessor.toChw(tile.getImage(), tensor, 0);
+      return tensor;
+    }
+    /**
+     * Submit a task to a lane. Its first failure stops the run, unless the run was canceled.
+     */
+    private void submit(ExecutorService lane, TaskBody body) {
+      FutureTask<Void> task = new FutureTask<>(() -> {
+        try {
+          body.run();
+        } catch (Exception e) {
+          if (!isCanceled()) {
+            abort(e);
+          }
+        }
+      }, null) {
+        @Override
+        protected void done() {
+          tasks.remove(this);
+        }
+      };
+      tasks.add(task);
+      lane.execute(task);
+    }
+
+    private synchronized boolean isCanceled() {
+      return canceled;
+    }
+  }
+
+  /**
+   * Body of a task of the pipeline.
+   */
+  @FunctionalInterface
+  private interface TaskBody {
+    void run() throws Exception;
+  }
+
+  /**
+   * Builder class for TilePipeline.
+   */
+  public static class Builder {
+    private final ImageServer<BufferedImage> server;
+    private final double downsample;
+    private int readerThreads = ExtensionExecutors.workerThreads();
+    private int encoderThreads = ExtensionExecutors.workerThreads();
+    private int queueCapacity = 64;
+    private int batchSize = 256;
+    private File outputDirectory = new File(".");
+    private boolean storeUncompressed = false;
+    private int maxBlockWidth = 0;
+    private TileMemoryBudget memoryBudget = TileMemoryBudget.shared();
+    private TensorPreprocessor preprocessor;
+
+    private Builder(ImageServer<BufferedImage> server, double downsample) {
+      this.server = server;
+      this.downsample = downsample;
+    }
+
+    /**
+     * Set the maximum number of regions of a run read at once from the server.
+     *
+     * @param readerThreads the new setting
+     * @return this builder
+     */
+    public Builder readerThreads(int readerThreads) {
+      this.readerThreads = Math.max(1, readerThreads);
+      return this;
+    }
+
+    /**
+     * Set the maximum number of tasks of a run encoding or converting the tiles at once.
+     *
+     * @param encoderThreads the new setting
+     * @return this builder
+     */
+    public Builder encoderThreads(int encoderThreads) {
+      this.encoderThreads = Math.max(1, encoderThreads);
+      return this;
+    }
+
+    /**
+     * Set the maximum number of tiles read but not yet taken by the calling thread.
+     * The reads are paused when it is reached.
+     *
+     * @param queueCapacity the new setting
+     * @return this builder
+     */
+    public Builder queueCapacity(int queueCapacity) {
+      this.queueCapacity = Math.max(1, queueCapacity);
+      return this;
+    }
+
+    /**
+     * Set the number of tiles in each archive handed to the listener.
+     *
+     * @param batchSize the new setting
+     * @return this builder
+     */
+    public Builder batchSize(int batchSize) {
+      this.batchSize = Math.max(1, batchSize);
+      return this;
+    }
+
+    /**
+     * Set the directory in which the archives are written.
+     *
+     * @param outputDirectory the new setting
+     * @return this builder
+     */
+    public Builder outputDirectory(File outputDirectory) {
+      this.outputDirectory = outputDirectory;
+      return this;
+    }
+
+    /**
+     * Set whether the tiles are stored uncompressed in the archives.
+     * Deflating already encoded images costs CPU for almost no size gain.
+     *
+     * @param storeUncompressed the new setting
+     * @return this builder
+     */
+    public Builder storeUncompressed(boolean storeUncompressed) {
+      this.storeUncompressed = storeUncompressed;
+      return this;
+    }
+
+    /**
+     * Read the adjacent tiles of a row together, in strips of at most {@code maxBlockWidth}
+     * pixels at the pipeline downsample. 0 reads each tile with its own request.
+     *
+     * @param maxBlockWidth the new setting
+     * @return this builder
+     */
+    public Builder maxBlockWidth(int maxBlockWidth) {
+      this.maxBlockWidth = Math.max(0, maxBlockWidth);
+      return this;
+    }
+
+    /**
+     * Set the budget limiting the decoded tiles held at once.
+     * By default it is shared with all the pipelines of the extension.
+     *
+     * @param memoryBudget the new setting
+     * @return this builder
+     */
+    public Builder memoryBudget(TileMemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Convert the tiles to the input of the model on the cpu lane, before they are handed to
+     * the listener of {@link #runDecoded}, which then reads {@link TileRecord#getTensor()}.
+     * The archives of {@link #run} are not affected.
+     *
+     * @param preprocessor the conversion of the model, or null to hand over the images
+     * @return this builder
+     */
+    public Builder preprocessor(TensorPreprocessor preprocessor) {
+      this.preprocessor = preprocessor;
+      return this;
+    }
+
+    /**
+     * Build a pipeline with the current settings.
+     *
+     * @return a new pipeline
+     */
+    public TilePipeline build() {
+      return new TilePipeline(this);
+    }
+  }
+}
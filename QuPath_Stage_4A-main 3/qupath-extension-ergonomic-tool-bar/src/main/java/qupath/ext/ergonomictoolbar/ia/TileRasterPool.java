@@ -0,0 +1,73 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of decoded tile images, given back once the tiles are encoded or classified.
+ * The tiles of a run have the same size, except those cropped to an annotation, so in
+ * steady state the tiles sliced from the strips reuse the same rasters instead of
+ * allocating new ones.
+ */
+public class TileRasterPool {
+  private final Map<Key, ArrayDeque<BufferedImage>> images = new HashMap<>();
+  private final int capacity;
+  private int size;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity maximum number of images kept in the pool
+   */
+  public TileRasterPool(int capacity) {
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Take an image from the pool, or create one if none has this size and model.
+   * The content of a reused image is not cleared.
+   *
+   * @param template an image whose color and sample models are used
+   * @param width    the width of the image
+   * @param height   the height of the image
+   * @return an image compatible with the template
+   */
+  public BufferedImage acquire(BufferedImage template, int width, int height) {
+    Key key = new Key(width, height, template.getColorModel(), template.isAlphaPremultiplied());
+    synchronized (this) {
+      ArrayDeque<BufferedImage> pooled = images.get(key);
+      if (pooled != null && !pooled.isEmpty()) {
+        size--;
+        return pooled.poll();
+      }
+    }
+    return new BufferedImage(template.getColorModel(),
+        template.getRaster().createCompatibleWritableRaster(width, height),
+        template.isAlphaPremultiplied(), null);
+  }
+
+  /**
+   * Give an image back to the pool. It is dropped if the pool is full.
+   * The image must not be used anymore by the caller.
+   *
+   * @param image the image to give back, may be null
+   */
+  public synchronized void release(BufferedImage image) {
+    if (image == null || size >= capacity) {
+      return;
+    }
+    Key key = new Key(image.getWidth(), image.getHeight(), image.getColorModel(),
+        image.isAlphaPremultiplied());
+    images.computeIfAbsent(key, k -> new ArrayDeque<>()).add(image);
+    size++;
+  }
+
+  /**
+   * Images of the same size and models can be exchanged.
+   */
+  private record Key(int width, int height, ColorModel colorModel, boolean premultiplied) {
+  }
+}
@@ -0,0 +1,87 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A tile travelling through the {@link TilePipeline}.
+ * It is created by a read with the decoded image, then filled with the encoded bytes or
+ * with the input of the model.
+ */
+public final class TileRecord {
+  private final int index;
+  private BufferedImage image;
+  private TileBufferPool.Buffer encoded;
+  private float[] tensor;
+
+  /**
+   * Constructor.
+   *
+   * @param index position of the tile in the list given to the pipeline
+   * @param image the image read from the server
+   */
+  TileRecord(int index, BufferedImage image) {
+    this.index = index;
+    this.image = image;
+  }
+
+  /**
+   * Get the position of the tile in the list given to the pipeline.
+   *
+   * @return the index of the tile
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * Get the name of the tile inside the batch archive.
+   *
+   * @return the entry name
+   */
+  public String getEntryName() {
+    return TilePipeline.entryName(index);
+  }
+
+  /**
+   * Get the image read from the server.
+   *
+   * @return the decoded image, or null once it has been given back to the pipeline
+   */
+  public BufferedImage getImage() {
+    return image;
+  }
+
+  void clearImage() {
+    image = null;
+  }
+
+  /**
+   * Get the buffer holding the encoded tile.
+   *
+   * @return the encoded image, or null if the tile has not been encoded yet
+   */
+  public TileBufferPool.Buffer getEncoded() {
+    return encoded;
+  }
+
+  void setEncoded(TileBufferPool.Buffer encoded) {
+    this.encoded = encoded;
+  }
+
+  /**
+   * Get the tile converted to the input of the model.
+   *
+   * @return the tensor, or null if the pipeline has no {@link TensorPreprocessor}
+   */
+  public float[] getTensor() {
+    return tensor;
+  }
+
+  void setTensor(float[] tensor) {
+    this.tensor = tensor;
+  }
+
+  void clearTensor() {
+    tensor = null;
+  }
+}
@@ -0,0 +1,111 @@
+package qupath.ext.ergonomictoolbar.ia;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Low-resolution image covering a set of tiles, read with a single region request,
+ * in which each tile is a few pixels wide. Used by the filters that look at the colours of
+ * the tiles before they are read at full resolution.
+ */
+final class TileThumbnail {
+  // Largest side of the thumbnail, the downsample is increased beyond
+  private static final int MAX_THUMBNAIL_SIZE = 2048;
+
+  private final int[] pixels;
+  private final int width;
+  private final int height;
+  private final int minX;
+  private final int minY;
+  private final double downsample;
+
+  private TileThumbnail(int[] pixels, int width, int height, int minX, int minY,
+                        double downsample) {
+    this.pixels = pixels;
+    this.width = width;
+    this.height = height;
+    this.minX = minX;
+    this.minY = minY;
+    this.downsample = downsample;
+  }
+
+  /**
+   * Read the thumbnail of the tiles.
+   *
+   * @param server   the server of the image
+   * @param tiles    the tiles to cover, not empty
+   * @param tileSize the width in pixels of a tile in the thumbnail
+   * @return the thumbnail, with its pixels in packed RGB
+   * @throws IOException if the region cannot be read
+   */
+  static TileThumbnail read(ImageServer<BufferedImage> server, List<ROI> tiles,
+                            int tileSize) throws IOException {
+    // Bounds of all the tiles
+    double minX = Double.MAX_VALUE;
+    double minY = Double.MAX_VALUE;
+    double maxX = 0;
+    double maxY = 0;
+    double tileWidth = 0;
+    for (ROI roi : tiles) {
+      minX = Math.min(minX, roi.getBoundsX());
+      minY = Math.min(minY, roi.getBoundsY());
+      maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+      maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+      tileWidth = Math.max(tileWidth, roi.getBoundsWidth());
+    }
+
+    double downsample = Math.max(1, Math.max(tileWidth / tileSize,
+        Math.max(maxX - minX, maxY - minY) / MAX_THUMBNAIL_SIZE));
+    RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample,
+        (int) minX, (int) minY, (int) Math.ceil(maxX - (int) minX),
+        (int) Math.ceil(maxY - (int) minY));
+    BufferedImage thumbnail = server.readRegion(request);
+
+    int width = thumbnail.getWidth();
+    int height = thumbnail.getHeight();
+    int[] pixels = thumbnail.getRGB(0, 0, width, height, null, 0, width);
+    return new TileThumbnail(pixels, width, height, (int) minX, (int) minY, downsample);
+  }
+
+  /**
+   * Get the pixels of the thumbnail.
+   *
+   * @return the packed RGB pixels, row after row
+   */
+  int[] getPixels() {
+    return pixels;
+  }
+
+  /**
+   * Get the width of the thumbnail, which is the stride of the pixels.
+   *
+   * @return the width in pixels
+   */
+  int getWidth() {
+    return width;
+  }
+
+  /**
+   * Get the rectangle of a tile in the thumbnail, never empty.
+   *
+   * @param roi the region of the tile, in full resolution pixels
+   * @return {x0, y0, x1, y1}, the end coordinates being excluded
+   */
+  int[] bounds(ROI roi) {
+    int x0 = clamp((int) ((roi.getBoundsX() - minX) / downsample), width - 1);
+    int y0 = clamp((int) ((roi.getBoundsY() - minY) / downsample), height - 1);
+    int x1 = clamp((int) Math.ceil((roi.getBoundsX() + roi.getBoundsWidth() - minX)
+        / downsample), width);
+    int y1 = clamp((int) Math.ceil((roi.getBoundsY() + roi.getBoundsHeight() - minY)
+        / downsample), height);
+    return new int[] {x0, y0, Math.max(x1, x0 + 1), Math.max(y1, y0 + 1)};
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(value, max));
+  }
+}
@@ -115,6 +115,30 @@ public class AlertUtils {
     createCustomAlert("The operation was successful.");
   }
 
+  /**
+   * Display an confirmation of the computation completion, with the number of tiles
+   * labelled as background without being classified.
+   *
+   * @param skippedTiles The number of background tiles.
+   */
+  public static void computationCompleted(int skippedTiles) {
+    if (skippedTiles == 0) {
+      computationCompleted();
+      return;
+    }
+    createCustomAlert("The operation was successful.\n"
+        + skippedTiles + " background tiles were labelled \"Other\" without being classified.");
+  }
+
+  /**
+   * Display the report of the automatic annotation of a project.
+   *
+   * @param report The number of images annotated, skipped and failed.
+   */
+  public static void projectAnnotationCompleted(String report) {
+    createCustomAlert("The images of the project have been annotated.\n" + report);
+  }
+
   /**
    * Display an error when the computation failed.
    */
@@ -152,6 +176,14 @@ public class AlertUtils {
     createCustomAlert("There is a problem with the tiles of the annotation.");
   }
 
+  /**
+   * Warn that the model folder does not give the resolution of its training tiles.
+   */
+  public static void trainingDownsampleUnknown() {
+    createCustomAlert("The model folder does not give the resolution of its training tiles.\n"
+        + "The tiles are read at downsample 20, as for the models trained before.");
+  }
+
   /**
    * Display an error when the tiles of the annotation are not correct.
    */
@@ -4,13 +4,19 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import javafx.application.Platform;
 import qupath.ext.ergonomictoolbar.AlternativeTiler;
+import qupath.ext.ergonomictoolbar.ExtensionExecutors;
+import qupath.ext.ergonomictoolbar.TileGrid;
+import qupath.ext.ergonomictoolbar.ia.HierarchyBatcher;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.utils.Tiler;
+import qupath.lib.roi.interfaces.ROI;
 
 /**
  * Utility class for tiling annotations.
@@ -18,8 +24,15 @@ import qupath.lib.objects.utils.Tiler;
 public class TilerUtils {
   private static final ArrayList<UUID> tiledAnnotations = new ArrayList<>();
 
+  // The tilings are run one at a time, so that they are committed in the order of the requests
+  private static final Executor TILING = ExtensionExecutors.serial(ExtensionExecutors.cpu());
+
   /**
    * Method that creates all the tiles from an annotation.
+   * The tiles are created on the cpu lane, then attached to the annotation on the JavaFX
+   * application thread in a single operation, replacing its previous tiles, with one hierarchy
+   * event. The tiling is dropped if the annotation was moved in the meantime, as its next
+   * tiling is then already queued.
    */
   public static void annotationTilesCreator(PathObject pathObject, PathObjectHierarchy hierarchy,
                                             double tileWidthInMicrons, double tileHeightInMicrons) {
@@ -34,22 +47,43 @@ public class TilerUtils {
 
     Tiler tiler = tilerBuilder.build();
 
-    List<PathObject> tiles = tiler.createTiles(pathObject.getROI());
-
-    // Add the tiles to the hierarchy
-    hierarchy.addObjects(tiles);
-
-    // Add the tiles as children of the selected object
-    for (PathObject tile : tiles) {
-      pathObject.addChildObject(tile);
-    }
+    ROI roi = pathObject.getROI();
+    TILING.execute(() -> {
+      List<PathObject> tiles = tiler.createTiles(roi);
+
+      // The tiles are attached directly below the annotation, the hierarchy does not look
+      // for their parent
+      HierarchyBatcher batcher = HierarchyBatcher.deferred(hierarchy);
+      for (PathObject tile : tiles) {
+        batcher.add(pathObject, tile);
+      }
+
+      Platform.runLater(() -> {
+        if (pathObject.getROI() != roi) {
+          return;
+        }
+        // Remove the previous tiles, the event of the commit covers them too
+        List<PathObject> previousTiles = pathObject.getChildObjects().stream()
+            .filter(PathObject::isTile)
+            .toList();
+        pathObject.removeChildObjects(previousTiles);
+        batcher.commit();
+      });
+    });
   }
 
   /**
-   * Method that creates all the tiles from an annotation.
+   * Method that creates the grid of tiles of an annotation.
+   * The tiles are kept as cells of the grid, their objects are only created for the results.
+   *
+   * @param imageData  The data containing the image to which the annotation belongs.
+   * @param annotation The annotation to tile.
+   * @param tileSize   The size of the tiles, in microns.
+   * @param spacing    The gap between two tiles, in pixels.
+   * @return the grid, or null if the calibration or the tile size is invalid
    */
-  public static List<PathObject> tilesCreator(ImageData<BufferedImage> imageData,
-                                              PathObject annotation, int tileSize, int spacing) {
+  public static TileGrid gridCreator(ImageData<BufferedImage> imageData, PathObject annotation,
+                                     int tileSize, int spacing) {
     // Get the pixel calibration information from the image data
     PixelCalibration cal = imageData.getServer().getPixelCalibration();
 
@@ -66,19 +100,11 @@ public class TilerUtils {
 
     // Start the tiling of our selection, with our spacing value
     AlternativeTiler.Builder tilerBuilder =
-        AlternativeTiler.builder(tileSizePixels, tileSizePixels, spacing);
+        AlternativeTiler.builder(tileSizePixels, tileSizePixels, spacing)
+            .scanline(true)
+            .quadtree(true);
     AlternativeTiler tiler = tilerBuilder.build();
-    List<PathObject> tiles = tiler.createTiles(annotation.getROI());
-
-    int num = 100;
-
-    // Label each tile with a unique name
-    for (PathObject tile : tiles) {
-      tile.setName("t" + num);
-      num++;
-    }
-
-    return tiles;
+    return tiler.createGrid(annotation);
   }
 
   /**
@@ -1,4 +1,6 @@
+import mmap
 import os
+import shutil
 import sys
 import zipfile
 from PIL import Image
@@ -7,8 +9,8 @@ import torch.nn as nn
 import torchvision.transforms as transforms
 from torchvision import models
 import numpy as np
-from concurrent.futures import ThreadPoolExecutor, as_completed
-from typing import Tuple, Dict, Union
+from concurrent.futures import ThreadPoolExecutor
+from typing import Callable, Dict, List, Optional, Union
 
 # Set random seeds for reproducibility
 np.random.seed(0)
@@ -24,6 +26,7 @@ transform = transforms.Compose([
 ])
 
 # Load the pre-trained model
+# The model folder is the second argument, both in single run and in server mode
 model = models.resnet18(weights=None)
 model.fc = nn.Linear(model.fc.in_features, 3)  # 3 classes for classification
 model_path = sys.argv[2] + "/model.pth"
@@ -31,76 +34,87 @@ model.load_state_dict(torch.load(model_path, map_location=torch.device('cpu')))
 model.eval()
 
 
-def load_image(image: Image.Image) -> torch.Tensor:
+# Number of images given together to the model, set by the "BATCH" command
+batch_size = 32
+
+# Tensor ring shared with QuPath, mapped once and kept while its path does not change
+ring_path: Optional[str] = None
+ring_file = None
+ring_map: Optional[mmap.mmap] = None
+
+
+def load_image(image_path: str) -> Union[torch.Tensor, str]:
     """
     Load and transform an image for model prediction.
 
     Parameters:
-    - image (PIL.Image.Image): The image to transform.
+    - image_path (str): The path to the image.
 
     Returns:
-    torch.Tensor: The transformed image tensor.
+    torch.Tensor or str: The transformed image tensor, or an error message.
     """
-    image = transform(image)
-    image = image.unsqueeze(0)  # Add a batch dimension
-    return image
+    try:
+        image = Image.open(image_path).convert('RGB')
+        return transform(image)
+    except Exception as e:
+        return str(e)
 
 
-def predict_image(image: Image.Image) -> int:
+def predict_batch(images: List[torch.Tensor]) -> List[int]:
     """
-    Predict the class of an image using the pre-trained model.
+    Predict the class of a batch of images using the pre-trained model.
 
     Parameters:
-    - image (PIL.Image.Image): The image to predict.
+    - images (list of torch.Tensor): The transformed images.
 
     Returns:
-    int: The predicted class (0, 1, or 2).
+    list: The predicted class (0, 1, or 2) of each image.
     """
-    image = load_image(image)
-
-    with torch.no_grad():
-        output = model(image)
-        _, predicted = torch.max(output, 1)
-
-    return predicted.item()
+    return predict_tensor(torch.stack(images))
 
 
-def process_image(image_path: str) -> Tuple[str, Union[int, str]]:
+def predict_tensor(batch: torch.Tensor) -> List[int]:
     """
-    Process an image and predict its class.
+    Predict the class of images already stacked in a single tensor.
 
     Parameters:
-    - image_path (str): The path to the image.
+    - batch (torch.Tensor): The transformed images, of shape (N, 3, H, W).
 
     Returns:
-    tuple: The image path and the predicted class or an error message.
+    list: The predicted class (0, 1, or 2) of each image.
     """
-    try:
-        image = Image.open(image_path).convert('RGB')
-        _pred = predict_image(image)
-        return image_path, _pred
+    with torch.no_grad():
+        output = model(batch)
+        _, predicted = torch.max(output, 1)
 
-    except Exception as e:
-        return image_path, str(e)
+    return predicted.tolist()
 
 
-def process_zip(_zip_path: str) -> Dict[str, Union[int, str]]:
+def process_zip(_zip_path: str,
+                on_prediction: Optional[Callable[[str, Union[int, str]], None]] = None
+                ) -> Dict[str, Union[int, str]]:
     """
     Extract and process images from a zip file, predicting their classes.
 
     Parameters:
     - zip_path (str): The path to the zip file.
+    - on_prediction (callable, optional): Called with the file name and the
+      predicted class of each image, as soon as it is available.
 
     Returns:
     dict: A dictionary mapping image file names to their predicted classes or
           error messages.
     """
-    # Extract the files from the zip
+    # Extract the files from the zip in a folder of their own, so that the
+    # images of the previous batches are not classified again
+    batch_name = os.path.splitext(os.path.basename(_zip_path))[0]
+    extract_dir = os.path.join('extracted_images', batch_name)
+    shutil.rmtree(extract_dir, ignore_errors=True)
     with zipfile.ZipFile(_zip_path, 'r') as zip_ref:
-        zip_ref.extractall('extracted_images')
+        zip_ref.extractall(extract_dir)
 
     image_paths = []
-    for root, _, files in os.walk('extracted_images'):
+    for root, _, files in os.walk(extract_dir):
         for file in files:
             if file.endswith('.tif') and file.lower().startswith('t'):
                 image_path = os.path.join(root, file)
@@ -108,17 +122,134 @@ def process_zip(_zip_path: str) -> Dict[str, Union[int, str]]:
 
     predictions = {}
 
-    # Use ThreadPoolExecutor to process images in parallel
+    def add_prediction(path: str, pred: Union[int, str]) -> None:
+        file_name = os.path.basename(path)
+        predictions[file_name] = pred
+        if on_prediction is not None:
+            on_prediction(file_name, pred)
+
+    # The images are decoded in parallel, then given to the model by batches
     with ThreadPoolExecutor() as executor:
-        futures = [executor.submit(process_image, *image_path) for image_path in
-                   image_paths]
+        for start in range(0, len(image_paths), batch_size):
+            paths = image_paths[start:start + batch_size]
+            loaded = list(executor.map(load_image, paths))
+
+            valid = [(path, image) for path, image in zip(paths, loaded)
+                     if isinstance(image, torch.Tensor)]
+            for path, error in zip(paths, loaded):
+                if isinstance(error, str):
+                    add_prediction(path, error)
+
+            if valid:
+                preds = predict_batch([image for _, image in valid])
+                for (path, _), pred in zip(valid, preds):
+                    add_prediction(path, pred)
+
+    shutil.rmtree(extract_dir, ignore_errors=True)
+    return predictions
 
-        for future in as_completed(futures):
-            image_path, pred = future.result()
-            file_name = os.path.basename(image_path)
-            predictions[file_name] = pred
 
-    return predictions
+def map_ring(path: str) -> mmap.mmap:
+    """
+    Map the tensor ring written by QuPath, or reuse the mapping of the previous request.
+
+    Parameters:
+    - path (str): The path of the ring file.
+
+    Returns:
+    mmap.mmap: The mapping of the whole file.
+    """
+    global ring_path, ring_file, ring_map
+    if path != ring_path:
+        if ring_map is not None:
+            ring_map.close()
+            ring_file.close()
+        ring_path = None
+        ring_file = open(path, 'r+b')
+        # Shared mapping, the tensors written by QuPath are seen without reopening the file
+        ring_map = mmap.mmap(ring_file.fileno(), 0)
+        ring_path = path
+    return ring_map
+
+
+def process_tensors(argument: str,
+                    on_prediction: Callable[[str, Union[int, str]], None]) -> None:
+    """
+    Classify tensors already converted by QuPath, read from the tensor ring without copy.
+
+    Parameters:
+    - argument (str): "<ring path> <input size> <offset> <count>", the offset of the first
+      tensor in bytes. The tensors are float32 little endian, in channels first order, and
+      already resized and normalized as with the transform above.
+    - on_prediction (callable): Called with the position of each tensor and its predicted class.
+    """
+    # The path may contain spaces, the numbers never do
+    path, size, offset, count = argument.rsplit(' ', 3)
+    size, offset, count = int(size), int(offset), int(count)
+
+    tensors = np.frombuffer(map_ring(path), dtype='<f4', count=count * 3 * size * size,
+                            offset=offset).reshape(count, 3, size, size)
+    batch = torch.from_numpy(tensors)
+    for start in range(0, count, batch_size):
+        # A slice of the mapped tensors is given to the model as is
+        preds = predict_tensor(batch[start:start + batch_size])
+        for position, pred in enumerate(preds, start):
+            on_prediction(str(position), pred)
+    # The views must be released before the mapping can be closed
+    del batch, tensors
+
+
+def send_prediction(filename: str, pred: Union[int, str]) -> None:
+    """
+    Write a prediction on the standard output, on a single line.
+
+    Parameters:
+    - filename (str): The name of the image.
+    - pred (int or str): The predicted class or an error message.
+    """
+    print(f"{filename}: " + str(pred).replace('\n', ' '), flush=True)
+
+
+def serve() -> None:
+    """
+    Keep the model loaded and classify the archives sent on the standard input.
+
+    Each request is a line "CLASSIFY <zip_path>", or "TENSORS <ring path>
+    <input size> <offset> <count>" for tensors written by QuPath in the tensor
+    ring, the batch size can be changed with a line "BATCH <size>". The
+    predictions are written as "<file_name>: <class>" lines, or
+    "<position>: <class>" for the tensors, as soon as they are available,
+    followed by a "DONE" line. The worker stops on "QUIT" or when the standard
+    input is closed.
+    """
+    global batch_size
+    # QuPath only sends tensors to the workers announcing it
+    print("READY TENSORS", flush=True)
+
+    for line in sys.stdin:
+        command, _, argument = line.strip().partition(' ')
+
+        if command == 'QUIT':
+            break
+
+        if command == 'BATCH':
+            batch_size = max(1, int(argument))
+            continue
+
+        if command == 'CLASSIFY':
+            try:
+                process_zip(argument, send_prediction)
+            except Exception as e:
+                # The message must hold on a single line
+                print("ERROR " + str(e).replace('\n', ' '))
+            print("DONE", flush=True)
+
+        if command == 'TENSORS':
+            try:
+                process_tensors(argument, send_prediction)
+            except Exception as e:
+                print("ERROR " + str(e).replace('\n', ' '))
+            print("DONE", flush=True)
 
 
 def main() -> None:
@@ -127,9 +258,13 @@ def main() -> None:
     """
     # We check that all arguments are present
     if len(sys.argv) != 3:
-        print("Usage: python classify_images.py <zip_path>")
+        print("Usage: python classify_images.py <zip_path|--serve> <model_path>")
         sys.exit(1)
 
+    if sys.argv[1] == '--serve':
+        serve()
+        return
+
     zip_path = sys.argv[1]
 
     # We check the file exist
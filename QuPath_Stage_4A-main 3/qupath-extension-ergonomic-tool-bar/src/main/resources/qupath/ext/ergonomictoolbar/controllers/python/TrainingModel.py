@@ -101,6 +101,17 @@ def save_model(model, path):
     torch.save(model.state_dict(), path)
 
 
+def export_onnx(model, path):
+    # Export du modèle pour la classification dans QuPath (ONNX Runtime)
+    # La taille du batch reste variable
+    model.eval()
+    dummy_input = torch.randn(1, 3, 224, 224)
+    torch.onnx.export(model, dummy_input, path,
+                      input_names=['input'], output_names=['logits'],
+                      dynamic_axes={'input': {0: 'batch'}, 'logits': {0: 'batch'}},
+                      opset_version=17)
+
+
 def count_files_in_directory(folder_path):
     # Vérifiez si le chemin est un répertoire    
     if not os.path.isdir(folder_path):
@@ -136,6 +147,7 @@ def main():
 
     # Sauvegarder le modèle
     save_model(model, sys.argv[1] + '/model.pth')
+    export_onnx(model, sys.argv[1] + '/model.onnx')
 
 
 if __name__ == '__main__':